@@ -0,0 +1,112 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Completion of a file uploaded by byte ranges from several sessions
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpRangeCommitTest {
+    private static final int RANGE = 100;
+
+    private File directory;
+
+    private File file;
+
+    private FtpRangeCommit rangeCommit;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("waarp", ".meta");
+        directory.delete();
+        directory.mkdirs();
+        file = new File(directory, "ranged.bin");
+        file.createNewFile();
+        // journal in the temporary directory instead of the configured metadata directory
+        rangeCommit = new FtpRangeCommit(null) {
+            @Override
+            public File getJournalFile(File served) {
+                return new File(directory, served.getName() + ".ftprange");
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        for (File child : directory.listFiles()) {
+            child.delete();
+        }
+        directory.delete();
+    }
+
+    private void write(int rank) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(rank * RANGE);
+            randomAccessFile.write(new byte[RANGE]);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Test
+    public void testTotalNeeded() {
+        try {
+            rangeCommit.begin(file, 0);
+            fail("Ranged Store started without total size");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(rangeCommit.isPending(file));
+    }
+
+    @Test
+    public void testFirstRangeCommittedBeforeOthersBegin() throws IOException {
+        rangeCommit.begin(file, 3 * RANGE);
+        write(0);
+        // no other range in progress yet: the file must not be complete
+        assertFalse(rangeCommit.commit(file, 0, RANGE));
+        assertTrue(rangeCommit.isPending(file));
+        assertTrue(rangeCommit.hasTotal(file));
+
+        // next ranges get the total size from the journal
+        rangeCommit.begin(file, 0);
+        rangeCommit.begin(file, 0);
+        write(2);
+        assertFalse(rangeCommit.commit(file, 2 * RANGE, 3 * RANGE));
+        assertTrue(rangeCommit.isPending(file));
+        write(1);
+        assertTrue(rangeCommit.commit(file, RANGE, 2 * RANGE));
+        assertFalse(rangeCommit.isPending(file));
+        assertFalse(rangeCommit.getJournalFile(file).exists());
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+
+/**
+ * Search of the file offset of a TYPE A REST offset without offset index
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataCharsetConverterTest {
+    private static final int LINES = 20000;
+
+    private static final String LINE = "line of text";
+
+    private static final String LOCAL_EOL = System.getProperty("line.separator");
+
+    private static final long NO_LIMIT = Long.MAX_VALUE;
+
+    @Test
+    public void testFindLocalOffset() throws IOException {
+        File file = File.createTempFile("waarp", ".txt");
+        try {
+            // larger than one scan block
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < LINES; i++) {
+                    builder.append(LINE).append(LOCAL_EOL);
+                }
+                output.write(builder.toString().getBytes(Charset.defaultCharset()));
+            } finally {
+                output.close();
+            }
+            long localLine = LINE.length() + LOCAL_EOL.length();
+            long networkLine = LINE.length() + 2;
+            for (long line = 0; line <= LINES; line += 997) {
+                // start of a line
+                assertEquals(line * localLine, FtpDataCharsetConverter.findLocalOffset(file,
+                        TransferType.ASCII, 0, 0, line * networkLine, NO_LIMIT));
+                // within a line, from a known pair
+                if (line > 0 && line < LINES) {
+                    assertEquals(line * localLine + 3, FtpDataCharsetConverter.findLocalOffset(
+                            file, TransferType.ASCII, localLine, networkLine,
+                            line * networkLine + 3, NO_LIMIT));
+                }
+                // between CR and LF
+                if (line > 0) {
+                    assertEquals(-1, FtpDataCharsetConverter.findLocalOffset(file,
+                            TransferType.ASCII, 0, 0, line * networkLine - 1, NO_LIMIT));
+                }
+            }
+            assertEquals(LINES * localLine, FtpDataCharsetConverter.findLocalOffset(file,
+                    TransferType.ASCII, 0, 0, LINES * networkLine, NO_LIMIT));
+            // after the end of the file
+            assertEquals(-1, FtpDataCharsetConverter.findLocalOffset(file, TransferType.ASCII,
+                    0, 0, LINES * networkLine + 1, NO_LIMIT));
+            // too far from the known pair
+            assertEquals(-1, FtpDataCharsetConverter.findLocalOffset(file, TransferType.ASCII,
+                    0, 0, 1000 * networkLine, 999 * localLine));
+            assertEquals(1000 * localLine, FtpDataCharsetConverter.findLocalOffset(file,
+                    TransferType.ASCII, 0, 0, 1000 * networkLine, 1000 * localLine));
+        } finally {
+            file.delete();
+        }
+    }
+}
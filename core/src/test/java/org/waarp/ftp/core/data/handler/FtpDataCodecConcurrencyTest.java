@@ -0,0 +1,183 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+import org.waarp.common.file.DataBlock;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferSubType;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+
+/**
+ * Stress test of the per channel Type and Structure codecs: hundreds of data channels switch
+ * between TYPE A and TYPE I, STRU F and STRU R, concurrently from many threads, and each transfer
+ * must be decoded according to the settings of its own channel only.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataCodecConcurrencyTest {
+    private static final int SESSIONS = 400;
+
+    private static final int THREADS = 32;
+
+    private static final int TRANSFERS = 20;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String LOCAL_EOL = System.getProperty("line.separator");
+
+    /**
+     * One data channel, as set up by FtpDataInitializer, with its own settings
+     */
+    private static class Session {
+        private final int id;
+        private final Random random;
+        private final FtpDataModeCodec modeCodec;
+        private final EmbeddedChannel channel;
+        private int transfer = 0;
+
+        private Session(int id) {
+            this.id = id;
+            random = new Random(id);
+            modeCodec = new FtpDataModeCodec(TransferMode.STREAM, TransferStructure.FILE);
+            modeCodec.setCodecReady();
+            channel = new EmbeddedChannel();
+            channel.pipeline().addLast(FtpDataInitializer.CODEC_MODE, modeCodec);
+            channel.pipeline().addLast(FtpDataInitializer.CODEC_TYPE,
+                    FtpDataInitializer.newTypeCodec());
+            channel.pipeline().addLast(FtpDataInitializer.CODEC_STRUCTURE,
+                    FtpDataInitializer.newStructureCodec());
+        }
+
+        /**
+         * Change the settings as DataNetworkHandler.setCorrectCodec does, then receive one file
+         * 
+         * @return null if the file was decoded as expected, else the error
+         */
+        private String transfer() {
+            TransferType type = random.nextBoolean() ? TransferType.ASCII : TransferType.IMAGE;
+            TransferStructure structure = random.nextBoolean() ? TransferStructure.FILE :
+                    TransferStructure.RECORD;
+            modeCodec.setStructure(structure);
+            modeCodec.setType(type);
+            FtpDataInitializer.updateCodecs(channel.pipeline(), type, TransferSubType.NONPRINT,
+                    FtpEbcdicCodePage.DEFAULT, structure);
+
+            StringBuilder network = new StringBuilder();
+            StringBuilder local = new StringBuilder();
+            int lines = 1 + random.nextInt(50);
+            for (int i = 0; i < lines; i++) {
+                String line = "session " + id + " transfer " + transfer + " line " + i;
+                network.append(line).append("\r\n");
+                local.append(line).append(type == TransferType.ASCII ? LOCAL_EOL : "\r\n");
+            }
+            byte[] sent = network.toString().getBytes(ASCII);
+            // split anywhere, including between CR and LF
+            int split = random.nextInt(sent.length);
+            channel.writeInbound(Unpooled.wrappedBuffer(sent, 0, split));
+            ByteBuf last = Unpooled.buffer(sent.length - split + 2);
+            last.writeBytes(sent, split, sent.length - split);
+            if (structure == TransferStructure.RECORD) {
+                // end of file marker
+                last.writeByte(0xFF);
+                last.writeByte(2);
+            }
+            channel.writeInbound(last);
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            boolean eof = false;
+            DataBlock block;
+            while ((block = (DataBlock) channel.readInbound()) != null) {
+                ByteBuf buf = block.getBlock();
+                if (buf != null) {
+                    byte[] bytes = new byte[buf.readableBytes()];
+                    buf.readBytes(bytes);
+                    received.write(bytes, 0, bytes.length);
+                    buf.release();
+                }
+                eof |= block.isEOF();
+            }
+            String context = "session " + id + " transfer " + transfer + " " + type + " " +
+                    structure;
+            transfer++;
+            if (!Arrays.equals(local.toString().getBytes(ASCII), received.toByteArray())) {
+                return context + ": unexpected content";
+            }
+            if (eof != (structure == TransferStructure.RECORD)) {
+                return context + ": unexpected end of file " + eof;
+            }
+            return null;
+        }
+    }
+
+    @Test
+    public void testConcurrentTypeAndStructureChanges() throws Exception {
+        List<Session> sessions = new ArrayList<Session>(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.add(new Session(i));
+        }
+        final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < TRANSFERS; round++) {
+                // each channel is used by one thread at a time, as by its event loop
+                List<Future<Object>> futures = new ArrayList<Future<Object>>(SESSIONS);
+                for (final Session session : sessions) {
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            String error = session.transfer();
+                            if (error != null) {
+                                errors.add(error);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Object> future : futures) {
+                    future.get();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            for (Session session : sessions) {
+                session.channel.finish();
+            }
+        }
+        assertTrue(errors.size() + " errors, first: " + errors.peek(), errors.isEmpty());
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.waarp.common.file.DataBlock;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+
+/**
+ * STREAM+RECORD escaping of FtpDataModeCodec: correctness of the bulk scan on heap and direct
+ * buffers, and benchmark against a per byte reference implementation.<br>
+ * <br>
+ * The benchmarks are skipped unless run with -Dwaarp.benchmark=true, their rounds can be raised
+ * with -Dwaarp.benchmark.rounds=n
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataModeCodecRecordTest {
+    private static final int SIZE = 1024 * 1024;
+
+    private static final boolean BENCHMARK = Boolean.getBoolean("waarp.benchmark");
+
+    private static final int ROUNDS = Integer.getInteger("waarp.benchmark.rounds", 20);
+
+    /**
+     * Reference implementation: one byte at a time, loops ended by IndexOutOfBoundsException, as
+     * the former loops but reading unsigned bytes (the former signed reads never matched 0xFF, so
+     * they are not usable as a reference of the escaping)
+     */
+    private static class PerByteRecordCodec extends FtpDataModeCodec {
+        private int lastbyte = 0;
+
+        private PerByteRecordCodec() {
+            super(TransferMode.STREAM, TransferStructure.RECORD);
+        }
+
+        @Override
+        protected DataBlock decodeRecord(ByteBuf buf, int length) {
+            DataBlock block = new DataBlock();
+            ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
+            if (lastbyte == 0xFF) {
+                decodeEscape(block, buf.readUnsignedByte(), newbuf);
+                lastbyte = 0;
+            }
+            try {
+                while (true) {
+                    lastbyte = buf.readUnsignedByte();
+                    if (lastbyte == 0xFF) {
+                        decodeEscape(block, buf.readUnsignedByte(), newbuf);
+                    } else {
+                        newbuf.writeByte(lastbyte);
+                    }
+                    lastbyte = 0;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // End of read
+            }
+            block.setBlock(newbuf);
+            return block;
+        }
+
+        private static void decodeEscape(DataBlock block, int nextbyte, ByteBuf newbuf) {
+            if (nextbyte == 0xFF) {
+                newbuf.writeByte(0xFF);
+            } else {
+                if ((nextbyte & 1) != 0) {
+                    block.setEOR(true);
+                }
+                if ((nextbyte & 2) != 0) {
+                    block.setEOF(true);
+                }
+            }
+        }
+
+        @Override
+        protected ByteBuf encodeRecord(DataBlock msg, ByteBuf buffer) {
+            ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount() + 2);
+            try {
+                while (true) {
+                    int value = buffer.readUnsignedByte();
+                    newbuf.writeByte(value);
+                    if (value == 0xFF) {
+                        newbuf.writeByte(0xFF);
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // End of read
+            }
+            int value = 0;
+            if (msg.isEOF()) {
+                value += 2;
+            }
+            if (msg.isEOR()) {
+                value += 1;
+            }
+            if (value > 0) {
+                newbuf.writeByte(0xFF);
+                newbuf.writeByte(value);
+            }
+            msg.clear();
+            return newbuf;
+        }
+    }
+
+    private static FtpDataModeCodec newCodec(boolean perByte) {
+        FtpDataModeCodec codec = perByte ? new PerByteRecordCodec() :
+                new FtpDataModeCodec(TransferMode.STREAM, TransferStructure.RECORD);
+        codec.setCodecReady();
+        return codec;
+    }
+
+    private static byte[] payload() {
+        byte[] bytes = new byte[SIZE];
+        new Random(SIZE).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static ByteBuf allocate(byte[] bytes, boolean direct) {
+        ByteBuf buf = direct ? Unpooled.directBuffer(bytes.length) : Unpooled.buffer(bytes.length);
+        buf.writeBytes(bytes);
+        return buf;
+    }
+
+    private static byte[] toBytes(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static byte[] encode(EmbeddedChannel channel, ByteBuf raw) {
+        DataBlock block = new DataBlock();
+        block.setBlock(raw);
+        block.setEOR(true);
+        channel.writeOutbound(block);
+        ByteBuf encoded = (ByteBuf) channel.readOutbound();
+        try {
+            return toBytes(encoded);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    private static DataBlock decode(EmbeddedChannel channel, ByteBuf escaped) {
+        channel.writeInbound(escaped);
+        return (DataBlock) channel.readInbound();
+    }
+
+    private static void checkRoundTrip(boolean direct) {
+        byte[] raw = payload();
+        byte[] expected = encode(new EmbeddedChannel(newCodec(true)), allocate(raw, direct));
+        byte[] escaped = encode(new EmbeddedChannel(newCodec(false)), allocate(raw, direct));
+        assertArrayEquals(expected, escaped);
+
+        DataBlock block = decode(new EmbeddedChannel(newCodec(false)), allocate(escaped, direct));
+        assertTrue(block.isEOR());
+        assertArrayEquals(raw, toBytes(block.getBlock()));
+        block.getBlock().release();
+
+        // escape byte ending one read and resolved by the next one
+        int split = 0;
+        while (escaped[split] != (byte) 0xFF) {
+            split++;
+        }
+        byte[] first = new byte[split + 1];
+        byte[] second = new byte[escaped.length - first.length];
+        System.arraycopy(escaped, 0, first, 0, first.length);
+        System.arraycopy(escaped, first.length, second, 0, second.length);
+        EmbeddedChannel channel = new EmbeddedChannel(newCodec(false));
+        DataBlock part1 = decode(channel, allocate(first, direct));
+        DataBlock part2 = decode(channel, allocate(second, direct));
+        ByteBuf joined = Unpooled.wrappedBuffer(part1.getBlock(), part2.getBlock());
+        assertArrayEquals(raw, toBytes(joined));
+        assertTrue(part2.isEOR());
+        joined.release();
+    }
+
+    @Test
+    public void testRoundTripHeap() {
+        checkRoundTrip(false);
+    }
+
+    @Test
+    public void testRoundTripDirect() {
+        checkRoundTrip(true);
+    }
+
+    /**
+     * 
+     * @return the time in ns of the encoding and of the decoding of the payload
+     */
+    private static long[] run(boolean perByte, byte[] raw, byte[] escaped, ByteBuf rawBuf,
+            ByteBuf escapedBuf) {
+        EmbeddedChannel channel = new EmbeddedChannel(newCodec(perByte));
+        // each run consumes and releases its own view of the shared buffers
+        ByteBuf rawView = rawBuf.duplicate().retain();
+        ByteBuf escapedView = escapedBuf.duplicate().retain();
+        long start = System.nanoTime();
+        byte[] encoded = encode(channel, rawView);
+        long encodeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        DataBlock block = decode(channel, escapedView);
+        long decodeTime = System.nanoTime() - start;
+        assertEquals(escaped.length, encoded.length);
+        assertEquals(raw.length, block.getBlock().readableBytes());
+        block.getBlock().release();
+        return new long[] {
+                encodeTime, decodeTime };
+    }
+
+    private static void benchmark(boolean direct) {
+        Assume.assumeTrue(BENCHMARK);
+        byte[] raw = payload();
+        byte[] escaped = encode(new EmbeddedChannel(newCodec(false)), allocate(raw, false));
+        ByteBuf rawBuf = allocate(raw, direct);
+        ByteBuf escapedBuf = allocate(escaped, direct);
+        long[][] times = new long[2][2];
+        for (int round = 0; round < ROUNDS * 2; round++) {
+            for (int perByte = 0; perByte < 2; perByte++) {
+                long[] time = run(perByte == 1, raw, escaped, rawBuf, escapedBuf);
+                if (round >= ROUNDS) {
+                    // first half is warm up
+                    times[perByte][0] += time[0];
+                    times[perByte][1] += time[1];
+                }
+            }
+        }
+        rawBuf.release();
+        escapedBuf.release();
+        String kind = direct ? "direct" : "heap";
+        System.out.println("STRU R " + kind + " encode: bulk " + rate(times[0][0]) +
+                " MB/s, per byte " + rate(times[1][0]) + " MB/s");
+        System.out.println("STRU R " + kind + " decode: bulk " + rate(times[0][1]) +
+                " MB/s, per byte " + rate(times[1][1]) + " MB/s");
+    }
+
+    private static long rate(long nanos) {
+        return nanos == 0 ? 0 : (long) SIZE * ROUNDS * 1000L / nanos;
+    }
+
+    @Test
+    public void benchmarkHeap() {
+        benchmark(false);
+    }
+
+    @Test
+    public void benchmarkDirect() {
+        benchmark(true);
+    }
+}
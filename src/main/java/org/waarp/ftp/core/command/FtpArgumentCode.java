@@ -152,7 +152,11 @@ public class FtpArgumentCode {
         /**
          * Compressed TransferMode
          */
-        COMPRESSED('C');
+        COMPRESSED('C'),
+        /**
+         * Deflate TransferMode (MODE Z extension): a zlib stream over a STREAM connection
+         */
+        ZLIB('Z');
         /**
          * TransferMode
          */
@@ -266,6 +270,9 @@ public class FtpArgumentCode {
             case 'S':
             case 's':
                 return FtpArgumentCode.TransferMode.STREAM;
+            case 'Z':
+            case 'z':
+                return FtpArgumentCode.TransferMode.ZLIB;
             default:
                 throw new InvalidArgumentException(
                         "Argument for TransferMode is not allowed: " + mode);
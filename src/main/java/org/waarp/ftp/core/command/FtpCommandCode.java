@@ -945,6 +945,27 @@ public enum FtpCommandCode {
      * 500, 501, 502, 504, 421, 530<br>
      */
     XSHA1(org.waarp.ftp.core.command.extension.XSHA1.class, null),
+    /**
+     * Byte range for the next RETR or STOR (FTP range draft): "RANG start end", both inclusive.
+     * "RANG 1 0" resets the range.<br>
+     * A ranged STOR writes at its own offset without truncating the file, such that several
+     * sessions can upload the same file in parallel. The file is complete once all its ranges are
+     * committed (up to the size given by ALLO if any).<br>
+     * Only in TYPE I, MODE S and STRU F.<br>
+     * 
+     * 350<br>
+     * 500, 501, 502, 504, 421, 530<br>
+     */
+    RANG(
+            org.waarp.ftp.core.command.extension.RANG.class,
+            null,
+            org.waarp.ftp.core.command.service.RETR.class,
+            org.waarp.ftp.core.command.service.STOR.class,
+            org.waarp.ftp.core.command.service.ALLO.class,
+            org.waarp.ftp.core.command.parameter.PORT.class,
+            org.waarp.ftp.core.command.parameter.PASV.class,
+            org.waarp.ftp.core.command.rfc2428.EPRT.class,
+            org.waarp.ftp.core.command.rfc2428.EPSV.class),
 
     // XXX GLOBAL OPERATION
     /**
@@ -0,0 +1,78 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.command.extension;
+
+import org.waarp.common.command.ReplyCode;
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply501Exception;
+import org.waarp.common.command.exception.Reply504Exception;
+import org.waarp.ftp.core.command.AbstractCommand;
+
+/**
+ * RANG command: byte range "start end" (both inclusive) for the next RETR or STOR, "RANG 1 0"
+ * resetting it. The first ranged STOR of a file needs its total size from ALLO.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class RANG extends AbstractCommand {
+    @Override
+    public void exec() throws CommandAbstractException {
+        if (!hasArg()) {
+            invalidCurrentCommand();
+            throw new Reply501Exception("Need start and end points as arguments");
+        }
+        String[] args = getArgs();
+        if (args.length != 2) {
+            invalidCurrentCommand();
+            throw new Reply501Exception("Need start and end points as arguments");
+        }
+        long start;
+        long end;
+        try {
+            start = Long.parseLong(args[0]);
+            end = Long.parseLong(args[1]);
+        } catch (NumberFormatException e) {
+            invalidCurrentCommand();
+            throw new Reply501Exception("Start and end points must be byte positions");
+        }
+        if (start == 1 && end == 0) {
+            getSession().resetRange();
+            getSession().setReplyCode(
+                    ReplyCode.REPLY_350_REQUESTED_FILE_ACTION_PENDING_FURTHER_INFORMATION,
+                    "Byte range reset");
+            return;
+        }
+        if (start < 0 || end < start) {
+            invalidCurrentCommand();
+            throw new Reply501Exception("Invalid byte range");
+        }
+        // checked again by RETR and STOR since TYPE, MODE and STRU may change in between
+        if (!getSession().getDataConn().isStreamFileImage()) {
+            invalidCurrentCommand();
+            throw new Reply504Exception("Byte range only in TYPE I, MODE S and STRU F");
+        }
+        // REST and RANG are exclusive
+        getSession().getRestart().setSet(false);
+        getSession().setRange(start, end);
+        getSession().setReplyCode(
+                ReplyCode.REPLY_350_REQUESTED_FILE_ACTION_PENDING_FURTHER_INFORMATION,
+                "Restarting at " + start + ". End byte range at " + end);
+    }
+
+}
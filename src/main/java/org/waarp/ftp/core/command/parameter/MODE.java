@@ -55,6 +55,14 @@ public class MODE extends AbstractCommand {
             getSession().getDataConn().setMode(transferMode);
         } else if (transferMode == FtpArgumentCode.TransferMode.STREAM) {
             getSession().getDataConn().setMode(transferMode);
+        } else if (transferMode == FtpArgumentCode.TransferMode.COMPRESSED) {
+            getSession().getDataConn().setMode(transferMode);
+        } else if (transferMode == FtpArgumentCode.TransferMode.ZLIB) {
+            if (getSession().getDataConn().getStructure() != FtpArgumentCode.TransferStructure.FILE) {
+                throw new Reply504Exception("Mode " + transferMode.name() +
+                        " only implemented with File structure");
+            }
+            getSession().getDataConn().setMode(transferMode);
         } else {
             throw new Reply504Exception("Mode not implemented: " +
                     transferMode.name());
@@ -54,6 +54,9 @@ public class TYPE extends AbstractCommand {
         }
         if (transferType == FtpArgumentCode.TransferType.ASCII) {
             getSession().getDataConn().setType(transferType);
+        } else if (transferType == FtpArgumentCode.TransferType.EBCDIC) {
+            // code page selected by OPTS TYPE E codepage
+            getSession().getDataConn().setType(transferType);
         } else if (transferType == FtpArgumentCode.TransferType.IMAGE) {
             getSession().getDataConn().setType(transferType);
         } else {
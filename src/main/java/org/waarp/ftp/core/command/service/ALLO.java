@@ -21,11 +21,11 @@ import org.waarp.common.command.ReplyCode;
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply452Exception;
 import org.waarp.common.command.exception.Reply501Exception;
-import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.ftp.core.command.AbstractCommand;
 
 /**
- * ALLO command: test if enough space is disponible
+ * ALLO command: test if enough space is disponible, the size being checked again by the next
+ * Store like command (no space is reserved)
  * 
  * @author Frederic Bregier
  * 
@@ -38,10 +38,14 @@ public class ALLO extends AbstractCommand {
             throw new Reply501Exception("Need a size as argument");
         }
         String[] args = getArgs();
-        int size = 0;
+        long size = 0;
         try {
-            size = getValue(args[0]);
-        } catch (InvalidArgumentException e) {
+            size = Long.parseLong(args[0]);
+        } catch (NumberFormatException e) {
+            throw new Reply501Exception("Need a valid size as argument: " +
+                    args[0]);
+        }
+        if (size < 0) {
             throw new Reply501Exception("Need a valid size as argument: " +
                     args[0]);
         }
@@ -49,12 +53,15 @@ public class ALLO extends AbstractCommand {
         if (free > 0 && free < size) {
             throw new Reply452Exception("Not enough space left");
         }
+        // Size checked again against the free space by the next Store like command
+        getSession().setAllocation(size);
         if (free == -1) {
-            getSession().setReplyCode(
-                    ReplyCode.REPLY_202_COMMAND_NOT_IMPLEMENTED, null);
+            getSession().setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY,
+                    "ALLO OK: " + size + " bytes requested");
         } else {
             getSession().setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY,
-                    "ALLO OK: " + free + " bytes available");
+                    "ALLO OK: " + free + " bytes available, " + size +
+                            " bytes requested");
         }
     }
 
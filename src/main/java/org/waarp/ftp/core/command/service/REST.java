@@ -37,6 +37,8 @@ public class REST extends AbstractCommand {
         }
         String marker = getArg();
         if (getSession().getRestart().restartMarker(marker)) {
+            // REST and RANG are exclusive
+            getSession().resetRange();
             getSession()
                     .setReplyCode(
                             ReplyCode.REPLY_350_REQUESTED_FILE_ACTION_PENDING_FURTHER_INFORMATION,
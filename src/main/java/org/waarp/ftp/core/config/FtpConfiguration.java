@@ -20,7 +20,12 @@ package org.waarp.ftp.core.config;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -32,6 +37,8 @@ import org.waarp.common.utility.WaarpShutdownHook.ShutdownConfiguration;
 import org.waarp.ftp.core.control.BusinessHandler;
 import org.waarp.ftp.core.data.handler.DataBusinessHandler;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
+import org.waarp.ftp.core.file.FtpDigestCache;
+import org.waarp.ftp.core.file.FtpOffsetIndex;
 import org.waarp.ftp.core.exception.FtpUnknownFieldException;
 import org.waarp.ftp.core.session.FtpSession;
 
@@ -171,6 +178,158 @@ public abstract class FtpConfiguration {
      */
     private long maxGlobalMemory = 0x100000000L;
 
+    /**
+     * Maximum number of blocks in flight during a Retrieve like transfer (1 means wait for each
+     * block to be written before reading the next one)
+     */
+    private int retrieveWindowBlocks = 8;
+
+    /**
+     * Maximum number of bytes in flight during a Retrieve like transfer (0 means no byte limit)
+     */
+    private long retrieveWindowSize = 0x80000; // 512K
+
+    /**
+     * Should the Retrieve like transfers use zero-copy (FileRegion) when no transformation is
+     * needed (STREAM, FILE, IMAGE and no SSL)
+     */
+    private boolean zeroCopyRetrieve = true;
+
+    /**
+     * Size of the mapped windows used by Retrieve like transfers on SSL data connections when no
+     * transformation is needed (0 means no mapping, using standard blocks)
+     */
+    private long retrieveMappedSize = 0x1000000; // 16M
+
+    /**
+     * Maximum number of bytes per session waiting to be written on disk for Store like transfers
+     * (0 means synchronous writes from the data thread)
+     */
+    private long storeWriteBudget = 0x400000; // 4M
+
+    /**
+     * Path prefixes identifying distinct storage devices, each one having its own write pool
+     */
+    private List<String> storeDevices = new ArrayList<String>();
+
+    /**
+     * Number of write threads per storage device
+     */
+    private int storeThreads = 4;
+
+    /**
+     * Size up to which received blocks are coalesced before being written on disk (0 means one
+     * write per block)
+     */
+    private int storeCoalesceSize = 0x40000; // 256K
+
+    /**
+     * Delay in ms after which coalesced blocks are written on disk whatever their size
+     */
+    private long storeCoalesceDelay = 100;
+
+    /**
+     * Digests computed while transferring a whole file, to be reused by XCRC, XMD5 and XSHA1
+     */
+    private boolean inlineDigestCRC = true;
+    private boolean inlineDigestMD5 = true;
+    private boolean inlineDigestSHA1 = false;
+
+    /**
+     * Cache of digests for XCRC, XMD5 and XSHA1
+     */
+    private final FtpDigestCache digestCache = new FtpDigestCache(10000);
+
+    /**
+     * Size from which the CRC of a file is computed by several threads (0 means never)
+     */
+    private long parallelCrcThreshold = 0x4000000; // 64M
+
+    /**
+     * Number of threads used to compute digests in parallel
+     */
+    private int digestThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of threads compressing MODE Z chunks of one transfer in parallel (0 or 1 means
+     * sequential compression)
+     */
+    private int zlibThreads = 0;
+
+    /**
+     * Number of bytes between two restart markers sent during MODE B Retrieve (0 means no marker
+     * by size)
+     */
+    private long restartMarkerSize = 0;
+
+    /**
+     * Delay in ms between two restart markers sent during MODE B Retrieve (0 means no marker by
+     * delay)
+     */
+    private long restartMarkerDelay = 0;
+
+    /**
+     * Number of file bytes between two checkpoints of the offset index of TYPE A transfers (0
+     * means no index saved). A REST of a TYPE A Store translates at most twice this interval
+     * from the nearest checkpoint.
+     */
+    private long offsetIndexInterval = FtpOffsetIndex.DEFAULT_INTERVAL;
+
+    /**
+     * Directory of the metadata of the served files (offset indexes and range journals), outside
+     * the Base Directory such that clients can neither see nor change them (null means a sibling
+     * directory of the Base Directory)
+     */
+    private String metadataDirectory = null;
+
+    /**
+     * Maximum number of transfers executing at once, each one on its own thread (0 means no
+     * limit)
+     */
+    private int transferThreads = 0;
+
+    /**
+     * Threads running the command handling and the transfers of the sessions
+     */
+    public static enum ExecutionMode {
+        /**
+         * Shared pools of platform threads: event loops sized by CLIENT_THREAD and one thread per
+         * executing transfer
+         */
+        PLATFORM,
+        /**
+         * One virtual thread per session for the command handling and per transfer (needs the
+         * WaarpFtp-VirtualThread module and Java 21, else PLATFORM is used)
+         */
+        VIRTUAL
+    }
+
+    /**
+     * Threads running the command handling and the transfers of the sessions
+     */
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+    /**
+     * Durability of the files written by Store like transfers
+     */
+    public static enum StoreDurability {
+        /**
+         * No explicit synchronization, left to the system
+         */
+        NONE,
+        /**
+         * Each file is synchronized on disk before the final reply. The synchronizations run on
+         * the store close threads, so the ones of uploads finishing together run in parallel, but
+         * each file still gets its own synchronization.
+         */
+        SYNC_ON_CLOSE
+    }
+
+    /**
+     * Durability of the files written by Store like transfers
+     */
+    private StoreDurability storeDurability = StoreDurability.NONE;
+
     /**
      * General Configuration Object
      */
@@ -698,6 +857,410 @@ public abstract class FtpConfiguration {
         this.maxGlobalMemory = maxGlobalMemory;
     }
 
+    /**
+     * @return the maximum number of blocks in flight during a Retrieve like transfer
+     */
+    public int getRetrieveWindowBlocks() {
+        return retrieveWindowBlocks;
+    }
+
+    /**
+     * @param retrieveWindowBlocks the maximum number of blocks in flight during a Retrieve like
+     *            transfer (1 means no pipelining)
+     */
+    public void setRetrieveWindowBlocks(int retrieveWindowBlocks) {
+        this.retrieveWindowBlocks = retrieveWindowBlocks < 1 ? 1 : retrieveWindowBlocks;
+    }
+
+    /**
+     * @return the maximum number of bytes in flight during a Retrieve like transfer
+     */
+    public long getRetrieveWindowSize() {
+        return retrieveWindowSize;
+    }
+
+    /**
+     * @param retrieveWindowSize the maximum number of bytes in flight during a Retrieve like
+     *            transfer (0 means no byte limit)
+     */
+    public void setRetrieveWindowSize(long retrieveWindowSize) {
+        this.retrieveWindowSize = retrieveWindowSize < 0 ? 0 : retrieveWindowSize;
+    }
+
+    /**
+     * @return True if zero-copy is allowed for Retrieve like transfers
+     */
+    public boolean isZeroCopyRetrieve() {
+        return zeroCopyRetrieve;
+    }
+
+    /**
+     * @param zeroCopyRetrieve True to allow zero-copy for Retrieve like transfers
+     */
+    public void setZeroCopyRetrieve(boolean zeroCopyRetrieve) {
+        this.zeroCopyRetrieve = zeroCopyRetrieve;
+    }
+
+    /**
+     * @return the size of the mapped windows for Retrieve like transfers on SSL data connections
+     */
+    public long getRetrieveMappedSize() {
+        return retrieveMappedSize;
+    }
+
+    /**
+     * @param retrieveMappedSize the size of the mapped windows for Retrieve like transfers on SSL
+     *            data connections (0 means no mapping)
+     */
+    public void setRetrieveMappedSize(long retrieveMappedSize) {
+        this.retrieveMappedSize = retrieveMappedSize < 0 ? 0 : retrieveMappedSize;
+    }
+
+    /**
+     * @return the maximum number of bytes per session waiting to be written on disk (0 means
+     *         synchronous writes)
+     */
+    public long getStoreWriteBudget() {
+        return storeWriteBudget;
+    }
+
+    /**
+     * @param storeWriteBudget the maximum number of bytes per session waiting to be written on
+     *            disk (0 means synchronous writes)
+     */
+    public void setStoreWriteBudget(long storeWriteBudget) {
+        this.storeWriteBudget = storeWriteBudget < 0 ? 0 : storeWriteBudget;
+    }
+
+    /**
+     * @return the path prefixes identifying distinct storage devices
+     */
+    public List<String> getStoreDevices() {
+        return storeDevices;
+    }
+
+    /**
+     * @param storeDevices the path prefixes identifying distinct storage devices
+     */
+    public void setStoreDevices(List<String> storeDevices) {
+        this.storeDevices = storeDevices;
+    }
+
+    /**
+     * @return the number of write threads per storage device
+     */
+    public int getStoreThreads() {
+        return storeThreads;
+    }
+
+    /**
+     * @param storeThreads the number of write threads per storage device
+     */
+    public void setStoreThreads(int storeThreads) {
+        this.storeThreads = storeThreads < 1 ? 1 : storeThreads;
+    }
+
+    /**
+     * @return the size up to which received blocks are coalesced (0 means no coalescing)
+     */
+    public int getStoreCoalesceSize() {
+        return storeCoalesceSize;
+    }
+
+    /**
+     * @param storeCoalesceSize the size up to which received blocks are coalesced (0 means no
+     *            coalescing)
+     */
+    public void setStoreCoalesceSize(int storeCoalesceSize) {
+        this.storeCoalesceSize = storeCoalesceSize < 0 ? 0 : storeCoalesceSize;
+    }
+
+    /**
+     * @return the delay in ms after which coalesced blocks are written
+     */
+    public long getStoreCoalesceDelay() {
+        return storeCoalesceDelay;
+    }
+
+    /**
+     * @param storeCoalesceDelay the delay in ms after which coalesced blocks are written
+     */
+    public void setStoreCoalesceDelay(long storeCoalesceDelay) {
+        this.storeCoalesceDelay = storeCoalesceDelay < 0 ? 0 : storeCoalesceDelay;
+    }
+
+    /**
+     * @return True if CRC is computed while transferring a whole file
+     */
+    public boolean isInlineDigestCRC() {
+        return inlineDigestCRC;
+    }
+
+    /**
+     * @param inlineDigestCRC True to compute CRC while transferring a whole file
+     */
+    public void setInlineDigestCRC(boolean inlineDigestCRC) {
+        this.inlineDigestCRC = inlineDigestCRC;
+    }
+
+    /**
+     * @return True if MD5 is computed while transferring a whole file
+     */
+    public boolean isInlineDigestMD5() {
+        return inlineDigestMD5;
+    }
+
+    /**
+     * @param inlineDigestMD5 True to compute MD5 while transferring a whole file
+     */
+    public void setInlineDigestMD5(boolean inlineDigestMD5) {
+        this.inlineDigestMD5 = inlineDigestMD5;
+    }
+
+    /**
+     * @return True if SHA-1 is computed while transferring a whole file
+     */
+    public boolean isInlineDigestSHA1() {
+        return inlineDigestSHA1;
+    }
+
+    /**
+     * @param inlineDigestSHA1 True to compute SHA-1 while transferring a whole file
+     */
+    public void setInlineDigestSHA1(boolean inlineDigestSHA1) {
+        this.inlineDigestSHA1 = inlineDigestSHA1;
+    }
+
+    /**
+     * @return the cache of digests for XCRC, XMD5 and XSHA1
+     */
+    public FtpDigestCache getDigestCache() {
+        return digestCache;
+    }
+
+    /**
+     * @return the size from which the CRC of a file is computed by several threads (0 means
+     *         never)
+     */
+    public long getParallelCrcThreshold() {
+        return parallelCrcThreshold;
+    }
+
+    /**
+     * @param parallelCrcThreshold the size from which the CRC of a file is computed by several
+     *            threads (0 means never)
+     */
+    public void setParallelCrcThreshold(long parallelCrcThreshold) {
+        this.parallelCrcThreshold = parallelCrcThreshold < 0 ? 0 : parallelCrcThreshold;
+    }
+
+    /**
+     * @return the number of threads used to compute digests in parallel
+     */
+    public int getDigestThreads() {
+        return digestThreads;
+    }
+
+    /**
+     * @param digestThreads the number of threads used to compute digests in parallel
+     */
+    public void setDigestThreads(int digestThreads) {
+        this.digestThreads = digestThreads < 1 ? 1 : digestThreads;
+    }
+
+    /**
+     * @return the number of threads compressing MODE Z chunks in parallel (0 or 1 means
+     *         sequential compression)
+     */
+    public int getZlibThreads() {
+        return zlibThreads;
+    }
+
+    /**
+     * @param zlibThreads the number of threads compressing MODE Z chunks in parallel (0 or 1
+     *            means sequential compression)
+     */
+    public void setZlibThreads(int zlibThreads) {
+        this.zlibThreads = zlibThreads < 0 ? 0 : zlibThreads;
+    }
+
+    /**
+     * @return the number of bytes between two restart markers sent during MODE B Retrieve (0
+     *         means no marker by size)
+     */
+    public long getRestartMarkerSize() {
+        return restartMarkerSize;
+    }
+
+    /**
+     * @param restartMarkerSize the number of bytes between two restart markers sent during
+     *            MODE B Retrieve (0 means no marker by size)
+     */
+    public void setRestartMarkerSize(long restartMarkerSize) {
+        this.restartMarkerSize = restartMarkerSize < 0 ? 0 : restartMarkerSize;
+    }
+
+    /**
+     * @return the delay in ms between two restart markers sent during MODE B Retrieve (0 means
+     *         no marker by delay)
+     */
+    public long getRestartMarkerDelay() {
+        return restartMarkerDelay;
+    }
+
+    /**
+     * @param restartMarkerDelay the delay in ms between two restart markers sent during MODE B
+     *            Retrieve (0 means no marker by delay)
+     */
+    public void setRestartMarkerDelay(long restartMarkerDelay) {
+        this.restartMarkerDelay = restartMarkerDelay < 0 ? 0 : restartMarkerDelay;
+    }
+
+    /**
+     * @return the number of file bytes between two checkpoints of the offset index of TYPE A
+     *         transfers (0 means no index saved, a REST of a TYPE A Store then being only found
+     *         within 16 MB from the start of the file)
+     */
+    public long getOffsetIndexInterval() {
+        return offsetIndexInterval;
+    }
+
+    /**
+     * @param offsetIndexInterval the number of file bytes between two checkpoints of the offset
+     *            index of TYPE A transfers (0 means no index saved)
+     */
+    public void setOffsetIndexInterval(long offsetIndexInterval) {
+        this.offsetIndexInterval = offsetIndexInterval < 0 ? 0 : offsetIndexInterval;
+    }
+
+    /**
+     * @return the directory of the metadata of the served files, outside the Base Directory
+     */
+    public String getMetadataDirectory() {
+        if (metadataDirectory != null) {
+            return metadataDirectory;
+        }
+        File base = new File(getBaseDirectory());
+        if (base.getParentFile() == null) {
+            return new File(System.getProperty("java.io.tmpdir"), "waarpftp.meta").getPath();
+        }
+        return base.getPath() + ".meta";
+    }
+
+    /**
+     * @param metadataDirectory the directory of the metadata of the served files, outside the
+     *            Base Directory (null means a sibling directory of the Base Directory)
+     */
+    public void setMetadataDirectory(String metadataDirectory) {
+        this.metadataDirectory = metadataDirectory;
+    }
+
+    /**
+     * 
+     * @param file
+     *            a served file
+     * @param extension
+     *            the kind of metadata
+     * @return the file of this kind of metadata of this served file, in the metadata directory
+     */
+    public File getMetadataFile(File file, String extension) {
+        byte[] path = file.getAbsolutePath().getBytes(Charset.forName("UTF-8"));
+        StringBuilder name = new StringBuilder(40 + extension.length());
+        try {
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(path)) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is mandatory on every Java platform
+            throw new IllegalStateException(e);
+        }
+        return new File(getMetadataDirectory(), name.append(extension).toString());
+    }
+
+    /**
+     * @return the maximum number of transfers executing at once, each one on its own thread (0
+     *         means no limit)
+     */
+    public int getTransferThreads() {
+        return transferThreads;
+    }
+
+    /**
+     * @param transferThreads the maximum number of transfers executing at once, each one on its
+     *            own thread (0 means no limit), a transfer beyond this limit being refused; to be
+     *            set before the first transfer (not used in VIRTUAL execution mode)
+     */
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads < 0 ? 0 : transferThreads;
+    }
+
+    /**
+     * @return the threads running the command handling and the transfers of the sessions
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * @param executionMode the threads running the command handling and the transfers of the
+     *            sessions, to be set before the server startup
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * @return the current number of threads of the transfer pool (0 before the first transfer
+     *         or when the transfers are not run by a pool)
+     */
+    public int getTransferPoolSize() {
+        return internalConfiguration.getTransferScheduler().getPoolSize();
+    }
+
+    /**
+     * @return the number of transfers currently executing
+     */
+    public int getTransferActiveCount() {
+        return internalConfiguration.getTransferScheduler().getActiveCount();
+    }
+
+    /**
+     * @return the number of transfers waiting for the end of the previous transfer of their
+     *         session
+     */
+    public int getTransferQueueSize() {
+        return internalConfiguration.getTransferScheduler().getQueueSize();
+    }
+
+    /**
+     * @return the number of transfers already executed
+     */
+    public long getTransferCompletedCount() {
+        return internalConfiguration.getTransferScheduler().getCompletedCount();
+    }
+
+    /**
+     * @return True if restart markers are to be sent during MODE B Retrieve
+     */
+    public boolean isRestartMarkerEnabled() {
+        return restartMarkerSize > 0 || restartMarkerDelay > 0;
+    }
+
+    /**
+     * @return the durability of the files written by Store like transfers
+     */
+    public StoreDurability getStoreDurability() {
+        return storeDurability;
+    }
+
+    /**
+     * @param storeDurability the durability of the files written by Store like transfers
+     */
+    public void setStoreDurability(StoreDurability storeDurability) {
+        this.storeDurability = storeDurability;
+    }
+
     /**
      * @return the shutdownConfiguration
      */
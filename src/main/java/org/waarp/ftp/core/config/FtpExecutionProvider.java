@@ -0,0 +1,45 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.config;
+
+import java.util.concurrent.ExecutorService;
+
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * Provider of the threads running the command handling and the transfers of the sessions when
+ * {@link FtpConfiguration#getExecutionMode()} is not the default one.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public interface FtpExecutionProvider {
+    /**
+     * 
+     * @return a new executor dedicated to the command handling of one session, shutdown once
+     *         this session is released
+     */
+    public EventExecutor newCommandExecutor();
+
+    /**
+     * 
+     * @return the executor shared by the serial queues of all sessions to execute their
+     *         transfers
+     */
+    public ExecutorService newTransferExecutor();
+}
@@ -23,6 +23,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
@@ -35,6 +36,7 @@ import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
 
 import org.waarp.common.command.exception.Reply425Exception;
@@ -46,6 +48,9 @@ import org.waarp.common.utility.WaarpNettyUtil;
 import org.waarp.common.utility.WaarpThreadFactory;
 import org.waarp.ftp.core.control.FtpInitializer;
 import org.waarp.ftp.core.control.ftps.FtpsInitializer;
+import org.waarp.ftp.core.data.FtpRangeCommit;
+import org.waarp.ftp.core.data.FtpStoreExecutor;
+import org.waarp.ftp.core.data.FtpTransferScheduler;
 import org.waarp.ftp.core.data.handler.FtpDataInitializer;
 import org.waarp.ftp.core.data.handler.ftps.FtpsDataInitializer;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
@@ -78,6 +83,11 @@ public class FtpInternalConfiguration {
      */
     public static final int RETRYNB = 3;
 
+    /**
+     * Maximum number of commands kept in order while a transfer is executing
+     */
+    public static final int MAXPENDINGCOMMANDS = 64;
+
     /**
      * Time elapse for WRITE OR CLOSE WAIT elaps in ms
      */
@@ -159,6 +169,47 @@ public class FtpInternalConfiguration {
     private ScheduledExecutorService executorService =
             Executors.newScheduledThreadPool(2, new WaarpThreadFactory("TimerTrafficFtp"));
 
+    /**
+     * Queues for disk writes of Store like transfers
+     */
+    private final FtpStoreExecutor storeExecutor;
+
+    /**
+     * Provider of the threads for the VIRTUAL execution mode
+     */
+    public static final String VIRTUAL_EXECUTION_PROVIDER =
+            "org.waarp.ftp.virtualthread.VirtualThreadExecutionProvider";
+
+    /**
+     * Provider of the threads if not the PLATFORM execution mode (lazily loaded)
+     */
+    private FtpExecutionProvider executionProvider = null;
+
+    /**
+     * True once the provider of the threads is loaded
+     */
+    private boolean executionProviderLoaded = false;
+
+    /**
+     * Shared scheduler for the execution of transfers
+     */
+    private final FtpTransferScheduler transferScheduler;
+
+    /**
+     * Commit of the ranges of the files uploaded in parallel (RANG)
+     */
+    private final FtpRangeCommit rangeCommit;
+
+    /**
+     * Executor for digests computed in parallel (lazily created)
+     */
+    private ExecutorService digestExecutor = null;
+
+    /**
+     * Executor for MODE Z chunks compressed in parallel (lazily created)
+     */
+    private ExecutorService zlibExecutor = null;
+
     /**
      * Global TrafficCounter (set from global configuration)
      */
@@ -238,6 +289,9 @@ public class FtpInternalConfiguration {
         execPassiveDataBoss = new NioEventLoopGroup(configuration.getSERVER_THREAD() * 2, new WaarpThreadFactory(
                 "PassiveDataBoss"));
         execDataWorker = new NioEventLoopGroup(configuration.getCLIENT_THREAD() * 2, new WaarpThreadFactory("DataWorker"));
+        storeExecutor = new FtpStoreExecutor(configuration);
+        transferScheduler = new FtpTransferScheduler(configuration);
+        rangeCommit = new FtpRangeCommit(configuration);
     }
 
     /**
@@ -249,6 +303,7 @@ public class FtpInternalConfiguration {
     public void serverStartup() throws FtpNoConnectionException {
         WaarpLoggerFactory.setDefaultFactory(WaarpLoggerFactory
                 .getDefaultFactory());
+        configuration.getDigestCache().load();
         // Command
         commandChannelGroup = new DefaultChannelGroup(configuration.fromClass.getName(), execWorker.next());
         // Data
@@ -483,6 +538,57 @@ public class FtpInternalConfiguration {
         return execCommandEvent;
     }
 
+    /**
+     * Return the provider of the threads according to the execution mode
+     * 
+     * @return the Execution Provider or null for the PLATFORM execution mode
+     */
+    public synchronized FtpExecutionProvider getExecutionProvider() {
+        if (!executionProviderLoaded) {
+            executionProviderLoaded = true;
+            if (configuration.getExecutionMode() == FtpConfiguration.ExecutionMode.VIRTUAL) {
+                try {
+                    executionProvider = (FtpExecutionProvider) Class.forName(
+                            VIRTUAL_EXECUTION_PROVIDER).newInstance();
+                } catch (ClassNotFoundException e) {
+                    logger.warn("VIRTUAL execution mode needs WaarpFtp-VirtualThread, PLATFORM is used");
+                } catch (InstantiationException e) {
+                    logger.warn("VIRTUAL execution mode not available, PLATFORM is used", e);
+                } catch (IllegalAccessException e) {
+                    logger.warn("VIRTUAL execution mode not available, PLATFORM is used", e);
+                } catch (LinkageError e) {
+                    logger.warn("VIRTUAL execution mode needs Java 21, PLATFORM is used: " +
+                            e.getMessage());
+                }
+            }
+        }
+        return executionProvider;
+    }
+
+    /**
+     * Return the Executor for Command Event of a new session, according to the execution mode
+     * 
+     * @return the Command Event Executor of the new session
+     */
+    public EventExecutorGroup getSessionExecutor() {
+        FtpExecutionProvider provider = getExecutionProvider();
+        if (provider == null) {
+            return execCommandEvent;
+        }
+        return provider.newCommandExecutor();
+    }
+
+    /**
+     * Release the Executor for Command Event of a session once this session is over
+     * 
+     * @param executor
+     */
+    public void releaseSessionExecutor(EventExecutor executor) {
+        if (getExecutionProvider() != null && executor.parent() != execCommandEvent) {
+            executor.shutdownGracefully(0, WAITFORNETOP, TimeUnit.MILLISECONDS);
+        }
+    }
+
     /**
      * Return the associated Executor for Data Event
      * 
@@ -492,6 +598,71 @@ public class FtpInternalConfiguration {
         return execDataEvent;
     }
 
+    /**
+     * Return the scheduler for timed tasks
+     * 
+     * @return the Scheduled Executor
+     */
+    public ScheduledExecutorService getScheduledExecutor() {
+        return executorService;
+    }
+
+    /**
+     * Return the queues for disk writes of Store like transfers
+     * 
+     * @return the Store Executor
+     */
+    public FtpStoreExecutor getStoreExecutor() {
+        return storeExecutor;
+    }
+
+    /**
+     * Return the shared scheduler for the execution of transfers
+     * 
+     * @return the Transfer Scheduler
+     */
+    public FtpTransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
+    /**
+     * Return the commit of the ranges of the files uploaded in parallel (RANG)
+     * 
+     * @return the Range Commit
+     */
+    public FtpRangeCommit getRangeCommit() {
+        return rangeCommit;
+    }
+
+    /**
+     * Return the executor for digests computed in parallel
+     * 
+     * @return the Digest Executor
+     */
+    public synchronized ExecutorService getDigestExecutor() {
+        if (digestExecutor == null) {
+            digestExecutor = Executors.newFixedThreadPool(configuration.getDigestThreads(),
+                    new WaarpThreadFactory("Digest"));
+        }
+        return digestExecutor;
+    }
+
+    /**
+     * Return the executor for MODE Z chunks compressed in parallel
+     * 
+     * @return the Zlib Executor or null if the compression is sequential
+     */
+    public synchronized ExecutorService getZlibExecutor() {
+        if (configuration.getZlibThreads() < 2) {
+            return null;
+        }
+        if (zlibExecutor == null) {
+            zlibExecutor = Executors.newFixedThreadPool(configuration.getZlibThreads(),
+                    new WaarpThreadFactory("Zlib"));
+        }
+        return zlibExecutor;
+    }
+
     /**
      * @param ssl
      * @return the ActiveBootstrap
@@ -554,6 +725,17 @@ public class FtpInternalConfiguration {
         //execDataEvent.shutdownGracefully();
         globalTrafficShapingHandler.release();
         executorService.shutdown();
+        storeExecutor.releaseResources();
+        transferScheduler.releaseResources();
+        synchronized (this) {
+            if (digestExecutor != null) {
+                digestExecutor.shutdownNow();
+            }
+            if (zlibExecutor != null) {
+                zlibExecutor.shutdownNow();
+            }
+        }
+        configuration.getDigestCache().save();
     }
 
     public boolean isAcceptAuthProt() {
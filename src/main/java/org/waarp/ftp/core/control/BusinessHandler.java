@@ -19,11 +19,13 @@ package org.waarp.ftp.core.control;
 
 import io.netty.channel.Channel;
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply501Exception;
 import org.waarp.common.file.Restart;
 import org.waarp.common.file.filesystembased.FilesystemBasedOptsMLSxImpl;
 import org.waarp.ftp.core.command.AbstractCommand;
 import org.waarp.ftp.core.command.FtpCommandCode;
 import org.waarp.ftp.core.data.FtpTransfer;
+import org.waarp.ftp.core.data.handler.FtpEbcdicCodePage;
 import org.waarp.ftp.core.file.FtpAuth;
 import org.waarp.ftp.core.file.FtpDir;
 import org.waarp.ftp.core.session.FtpSession;
@@ -155,7 +157,9 @@ public abstract class BusinessHandler {
                 // .append(" \"filename\"")
                 .append('\n')
                 .append("LAN EN*").append('\n')
-                .append(FtpCommandCode.REST.name()).append(" STREAM\n");
+                .append(FtpCommandCode.REST.name()).append(" STREAM\n")
+                .append(FtpCommandCode.RANG.name()).append(" STREAM\n")
+                .append(FtpCommandCode.MODE.name()).append(" Z\n");
         //builder.append("UTF8");
         return builder.toString();
     }
@@ -208,6 +212,52 @@ public abstract class BusinessHandler {
         return args[0] + " " + FtpCommandCode.OPTS.name() + optsMLSx.getFeat();
     }
 
+    /**
+     * OPTS TYPE E codepage: select the EBCDIC code page used by TYPE E
+     * 
+     * @param args
+     * @return the string to return to the client for the OPTS command for the TYPE argument
+     * @exception Reply501Exception
+     *                if the code page is unknown
+     */
+    protected String getTypeOptsMessage(String[] args) throws Reply501Exception {
+        if (args.length < 3 || !args[1].equalsIgnoreCase("E")) {
+            throw new Reply501Exception("Usage: OPTS TYPE E codepage");
+        }
+        FtpEbcdicCodePage codePage = FtpEbcdicCodePage.getCodePage(args[2]);
+        if (codePage == null) {
+            throw new Reply501Exception("Unknown EBCDIC code page: " + args[2]);
+        }
+        getFtpSession().getDataConn().setCodePage(codePage);
+        return args[0] + " E " + codePage.codePageName;
+    }
+
+    /**
+     * OPTS MODE Z LEVEL n: set the compression level of MODE Z
+     * 
+     * @param args
+     * @return the string to return to the client for the OPTS command for the MODE argument
+     * @exception Reply501Exception
+     *                if the level is incorrect
+     */
+    protected String getModeOptsMessage(String[] args) throws Reply501Exception {
+        if (args.length < 4 || !args[1].equalsIgnoreCase("Z") ||
+                !args[2].equalsIgnoreCase("LEVEL")) {
+            throw new Reply501Exception("Usage: OPTS MODE Z LEVEL n");
+        }
+        int level;
+        try {
+            level = Integer.parseInt(args[3]);
+        } catch (NumberFormatException e) {
+            throw new Reply501Exception("Incorrect level: " + args[3]);
+        }
+        if (level < 0 || level > 9) {
+            throw new Reply501Exception("Level must be between 0 and 9: " + args[3]);
+        }
+        getFtpSession().getDataConn().setZlibLevel(level);
+        return args[0] + " Z LEVEL " + level;
+    }
+
     /**
      * Is executed when the channel is closed, just before cleaning and just after.<br>
      * <I>Note: In some circumstances, it could be a good idea to call the clean operation on
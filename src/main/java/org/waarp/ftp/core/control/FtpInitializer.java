@@ -84,7 +84,7 @@ public class FtpInitializer extends ChannelInitializer<SocketChannel> {
         pipeline.addLast("decoder", ftpControlStringDecoder);
         pipeline.addLast("encoder", ftpControlStringEncoder);
         // Threaded execution for business logic
-        EventExecutorGroup executorGroup = configuration.getFtpInternalConfiguration().getExecutor();
+        EventExecutorGroup executorGroup = configuration.getFtpInternalConfiguration().getSessionExecutor();
         // and then business logic. New one on every connection
         BusinessHandler newbusiness = businessHandler.newInstance();
         NetworkHandler newNetworkHandler = new NetworkHandler(new FtpSession(configuration, newbusiness));
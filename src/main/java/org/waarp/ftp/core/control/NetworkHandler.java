@@ -20,7 +20,9 @@ package org.waarp.ftp.core.control;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
@@ -44,6 +46,7 @@ import org.waarp.ftp.core.command.FtpCommandCode;
 import org.waarp.ftp.core.command.access.USER;
 import org.waarp.ftp.core.command.internal.ConnectionCommand;
 import org.waarp.ftp.core.command.internal.IncorrectCommand;
+import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.control.ftps.FtpsInitializer;
 import org.waarp.ftp.core.data.FtpTransferControl;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
@@ -82,6 +85,31 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
      */
     private volatile ChannelHandlerContext ctx;
 
+    /**
+     * Commands received while a transfer is executing, kept in order until the end of this
+     * transfer (only used from the executor of the control channel)
+     */
+    private final LinkedList<PendingCommand> pendingCommands = new LinkedList<PendingCommand>();
+
+    /**
+     * True when the Control Channel is closed while a transfer is still executing, until the
+     * session is released (only used from the executor of the control channel)
+     */
+    private boolean releasePending = false;
+
+    /**
+     * One received command waiting for the end of the current transfer
+     */
+    private static class PendingCommand {
+        private final String message;
+        private final AbstractCommand command;
+
+        private PendingCommand(String message, AbstractCommand command) {
+            this.message = message;
+            this.command = command;
+        }
+    }
+
     /**
      * Constructor from session
      * 
@@ -117,7 +145,10 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
     }
 
     /**
-     * Run firstly executeChannelClosed.
+     * Run firstly executeChannelClosed.<br>
+     * <br>
+     * The commands received during the current transfer and not yet run are dropped without any
+     * reply, the Control Channel being closed.
      * 
      */
     @Override
@@ -127,23 +158,41 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
             super.channelInactive(ctx);
             return;
         }
+        pendingCommands.clear();
         // Wait for any command running before closing (bad client sometimes
-        // don't wait for answer)
-        int limit = 100;
-        while (session.getDataConn().getFtpTransferControl()
+        // don't wait for answer): the release is then done at the end of the
+        // transfer, or after at most 1s
+        if (session.getDataConn().getFtpTransferControl()
                 .isFtpTransferExecuting()) {
-            Thread.sleep(10);
-            limit--;
-            if (limit <= 0) {
-                logger.warn("Waiting for transfer finished but 1s is not enough");
-                break; // wait at most 1s
-            }
+            releasePending = true;
+            ctx.executor().schedule(new Runnable() {
+                public void run() {
+                    if (releasePending) {
+                        logger.warn("Waiting for transfer finished but 1s is not enough");
+                        releaseSession();
+                    }
+                }
+            }, FtpInternalConfiguration.WAITFORNETOP, TimeUnit.MILLISECONDS);
+        } else {
+            releaseSession();
         }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Release the session once the Control Channel is closed
+     */
+    private void releaseSession() {
+        releasePending = false;
+        FtpInternalConfiguration internalConfiguration =
+                session.getConfiguration().getFtpInternalConfiguration();
         businessHandler.executeChannelClosed();
         // release file and other permanent objects
         businessHandler.clear();
         session.clear();
-        super.channelInactive(ctx);
+        if (ctx != null) {
+            internalConfiguration.releaseSessionExecutor(ctx.executor());
+        }
     }
 
     /**
@@ -282,49 +331,129 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
             // First check if the command is an ABORT, QUIT or STAT
             if (!FtpCommandCode.isSpecialCommand(command.getCode())) {
                 // Now check if a transfer is on its way: illegal to have at
-                // same time two commands (except ABORT). Wait is at most 100x
-                // RETRYINMS=1s
+                // same time two commands (except ABORT), so the command is kept
+                // in order until the end of the transfer
                 FtpTransferControl control = session.getDataConn().getFtpTransferControl();
-                boolean notFinished = control.waitFtpTransferExecuting();
-                if (notFinished) {
-                    session.setReplyCode(
-                            ReplyCode.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
-                            "Previous transfer command is not finished yet");
-                    businessHandler.afterRunCommandKo(
-                            new Reply503Exception(session.getReplyCode().getMesg()));
-                    writeIntermediateAnswer(ctx);
+                if (!pendingCommands.isEmpty() || control.isFtpTransferExecuting()) {
+                    if (pendingCommands.size() >= FtpInternalConfiguration.MAXPENDINGCOMMANDS) {
+                        session.setReplyCode(
+                                ReplyCode.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
+                                "Previous transfer command is not finished yet");
+                        businessHandler.afterRunCommandKo(
+                                new Reply503Exception(session.getReplyCode().getMesg()));
+                        writeIntermediateAnswer(ctx);
+                        return;
+                    }
+                    logger.debug("Command delayed until end of transfer: {}", command.getCommand());
+                    pendingCommands.add(new PendingCommand(message, command));
                     return;
                 }
             }
-            // Default message
-            session.setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY, null);
-            // Special check for SSL AUTH/PBSZ/PROT/USER/PASS/ACCT
-            if (FtpCommandCode.isSslOrAuthCommand(command.getCode())) {
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
+            runCommand(ctx, message, command);
+        }
+    }
+
+    /**
+     * Called when the current transfer is over (from {@link FtpTransferControl}) in order to run
+     * the commands received in the meantime, in the order of their reception, or to release the
+     * session if the Control Channel is already closed
+     */
+    public void ftpTransferFinished() {
+        final ChannelHandlerContext context = ctx;
+        if (context == null) {
+            return;
+        }
+        try {
+            context.executor().execute(new Runnable() {
+                public void run() {
+                    runPendingCommands(context);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Rejected execution (shutdown) of pending commands");
+        }
+    }
+
+    /**
+     * Run the commands kept during the last transfer until a new transfer is executing
+     */
+    private void runPendingCommands(ChannelHandlerContext ctx) {
+        if (releasePending) {
+            // the Control Channel is already closed
+            pendingCommands.clear();
+            releaseSession();
+            return;
+        }
+        while (!pendingCommands.isEmpty()) {
+            if (!ctx.channel().isActive() || !isStillAlive(ctx)) {
+                pendingCommands.clear();
+                return;
+            }
+            if (session.getDataConn().getFtpTransferControl().isFtpTransferExecuting()) {
+                // wait for the end of this new transfer
                 return;
             }
-            if (session.getCurrentCommand().isNextCommandValid(command)) {
-                logger.debug("Previous: " + session.getCurrentCommand().getCode() +
-                        " Next: " + command.getCode());
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
-            } else {
-                if (!session.getAuth().isIdentified()) {
-                    session.setReplyCode(ReplyCode.REPLY_530_NOT_LOGGED_IN, null);
-                    session.setNextCommand(new USER());
-                    writeFinalAnswer(ctx);
-                    return;
+            PendingCommand pending = pendingCommands.removeFirst();
+            runCommand(ctx, pending.message, pending.command);
+            if (pending.command.getCode() == FtpCommandCode.AUTH ||
+                    pending.command.getCode() == FtpCommandCode.CCC) {
+                // commands received before the change of security are not to be trusted:
+                // each one is refused, such that the replies stay in order
+                if (!pendingCommands.isEmpty()) {
+                    logger.warn("Refuse " + pendingCommands.size() +
+                            " command(s) received before " + pending.command.getCode());
+                }
+                while (!pendingCommands.isEmpty()) {
+                    pendingCommands.removeFirst();
+                    session.setReplyCode(ReplyCode.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
+                            "Command received before " + pending.command.getCode() +
+                                    " completed");
+                    businessHandler.afterRunCommandKo(
+                            new Reply503Exception(session.getReplyCode().getMesg()));
+                    writeIntermediateAnswer(ctx);
                 }
-                command = new IncorrectCommand();
-                command.setArgs(getFtpSession(), message, null,
-                        FtpCommandCode.IncorrectSequence);
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
             }
         }
     }
 
+    /**
+     * Run one received command and write its answer
+     * 
+     * @param ctx
+     * @param message
+     *            the received line
+     * @param command
+     *            the command from this line
+     */
+    private void runCommand(ChannelHandlerContext ctx, String message, AbstractCommand command) {
+        // Default message
+        session.setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY, null);
+        // Special check for SSL AUTH/PBSZ/PROT/USER/PASS/ACCT
+        if (FtpCommandCode.isSslOrAuthCommand(command.getCode())) {
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
+            return;
+        }
+        if (session.getCurrentCommand().isNextCommandValid(command)) {
+            logger.debug("Previous: " + session.getCurrentCommand().getCode() +
+                    " Next: " + command.getCode());
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
+        } else {
+            if (!session.getAuth().isIdentified()) {
+                session.setReplyCode(ReplyCode.REPLY_530_NOT_LOGGED_IN, null);
+                session.setNextCommand(new USER());
+                writeFinalAnswer(ctx);
+                return;
+            }
+            command = new IncorrectCommand();
+            command.setArgs(getFtpSession(), message, null,
+                    FtpCommandCode.IncorrectSequence);
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
+        }
+    }
+
     /**
      * Write the current answer and eventually close channel if necessary (421 or 221)
      * 
@@ -362,6 +491,20 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
         return writeIntermediateAnswer(ctx);
     }
 
+    /**
+     * Write a preliminary reply during a transfer (as a 110 restart marker reply) without
+     * changing the current answer of the session
+     * 
+     * @param replyCode
+     * @param message
+     * @return the ChannelFuture associated with the write
+     */
+    public ChannelFuture writePreliminaryAnswer(ReplyCode replyCode, String message) {
+        String answer = ReplyCode.getFinalMsg(replyCode.getCode(), message);
+        logger.debug("Answer: " + answer);
+        return ctx.writeAndFlush(answer);
+    }
+
     /**
      * To be extended to inform of an error to SNMP support
      * 
@@ -19,6 +19,7 @@ package org.waarp.ftp.core.data;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.zip.Deflater;
 
 import io.netty.channel.Channel;
 
@@ -32,6 +33,7 @@ import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
 import org.waarp.ftp.core.config.FtpConfiguration;
 import org.waarp.ftp.core.data.handler.DataNetworkHandler;
+import org.waarp.ftp.core.data.handler.FtpEbcdicCodePage;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
@@ -109,6 +111,16 @@ public class FtpDataAsyncConn {
      */
     private volatile FtpArgumentCode.TransferSubType transferSubType = FtpArgumentCode.TransferSubType.NONPRINT;
 
+    /**
+     * Current EBCDIC code page for TYPE E
+     */
+    private volatile FtpEbcdicCodePage codePage = FtpEbcdicCodePage.DEFAULT;
+
+    /**
+     * Current compression level for MODE Z
+     */
+    private volatile int zlibLevel = Deflater.DEFAULT_COMPRESSION;
+
     /**
      * Current TransferStructure. Default FILE
      */
@@ -329,6 +341,38 @@ public class FtpDataAsyncConn {
         setCorrectCodec();
     }
 
+    /**
+     * @return the compression level for MODE Z
+     */
+    public int getZlibLevel() {
+        return zlibLevel;
+    }
+
+    /**
+     * @param zlibLevel
+     *            the compression level for MODE Z (0 to 9, -1 for default)
+     */
+    public void setZlibLevel(int zlibLevel) {
+        this.zlibLevel = zlibLevel;
+        setCorrectCodec();
+    }
+
+    /**
+     * @return the EBCDIC code page used for TYPE E
+     */
+    public FtpEbcdicCodePage getCodePage() {
+        return codePage;
+    }
+
+    /**
+     * @param codePage
+     *            the EBCDIC code page to use for TYPE E
+     */
+    public void setCodePage(FtpEbcdicCodePage codePage) {
+        this.codePage = codePage;
+        setCorrectCodec();
+    }
+
     /**
      * 
      * @return True if the current mode for data connection is FileInterface + (Stream or Block) +
@@ -342,10 +386,22 @@ public class FtpDataAsyncConn {
 
     /**
      * 
-     * @return True if the current mode for data connection is Stream
+     * @return True if the current Mode is STREAM, Structure FILE and Type IMAGE, so that the data
+     *         can be sent without any transformation
      */
-    public boolean isStreamFile() {
+    public boolean isStreamFileImage() {
         return transferMode == TransferMode.STREAM &&
+                transferStructure == TransferStructure.FILE &&
+                transferType == TransferType.IMAGE;
+    }
+
+    /**
+     * 
+     * @return True if the current mode for data connection is Stream (or Zlib, which is a
+     *         compressed stream ended by the close of the connection)
+     */
+    public boolean isStreamFile() {
+        return (transferMode == TransferMode.STREAM || transferMode == TransferMode.ZLIB) &&
                 transferStructure == TransferStructure.FILE;
     }
 
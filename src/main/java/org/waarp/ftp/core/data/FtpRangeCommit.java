@@ -0,0 +1,342 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.config.FtpConfiguration;
+
+/**
+ * Commit of the byte ranges of files uploaded in parallel by several sessions (RANG then
+ * STOR).<br>
+ * <br>
+ * Each ranged STOR writes at its own offset in the file, then commits the bytes it actually
+ * wrote. The committed ranges are kept in a journal in the metadata directory, out of reach of
+ * the clients (see {@link FtpConfiguration#getMetadataFile(File, String)}), such that the file
+ * is known as incomplete, even after a restart of the server, until its ranges cover it
+ * entirely up to the total size given by ALLO (the file is then trimmed to this size). The
+ * total size is needed by the first ranged STOR of a file, the next ones getting it from the
+ * journal: without it, a file whose ranges start and end at different times could be declared
+ * complete as soon as its first range is committed.<br>
+ * While the journal exists, the file cannot be retrieved.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpRangeCommit {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpRangeCommit.class);
+
+    /**
+     * Header of the journal
+     */
+    private static final int MAGIC = 0x57465243;
+    private static final int VERSION = 1;
+
+    /**
+     * Extension of the journal
+     */
+    private static final String EXTENSION = ".ftprange";
+
+    /**
+     * Ranges of one file being uploaded
+     */
+    private static class RangeState {
+        /**
+         * Total size of the file (-1 if unknown)
+         */
+        private long total = -1;
+
+        /**
+         * Committed ranges, sorted and merged, as [start, end[ pairs
+         */
+        private final List<long[]> ranges = new ArrayList<long[]>();
+
+        /**
+         * Number of ranged Store in progress
+         */
+        private int active = 0;
+
+        private void add(long start, long end) {
+            int i = 0;
+            while (i < ranges.size() && ranges.get(i)[1] < start) {
+                i++;
+            }
+            long newStart = start;
+            long newEnd = end;
+            while (i < ranges.size() && ranges.get(i)[0] <= newEnd) {
+                long[] range = ranges.remove(i);
+                newStart = Math.min(newStart, range[0]);
+                newEnd = Math.max(newEnd, range[1]);
+            }
+            ranges.add(i, new long[] { newStart, newEnd });
+        }
+
+        /**
+         * @return True if the committed ranges cover the whole file
+         */
+        private boolean isComplete() {
+            if (total < 0 || ranges.size() != 1 || ranges.get(0)[0] != 0) {
+                return false;
+            }
+            return ranges.get(0)[1] >= total;
+        }
+    }
+
+    /**
+     * Files with ranged Store in progress, by absolute path
+     */
+    private final Map<String, RangeState> states = new HashMap<String, RangeState>();
+
+    /**
+     * Configuration giving the metadata directory
+     */
+    private final FtpConfiguration configuration;
+
+    /**
+     * 
+     * @param configuration
+     */
+    public FtpRangeCommit(FtpConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * 
+     * @param file
+     * @return the journal of the ranges of this file
+     */
+    public File getJournalFile(File file) {
+        return configuration.getMetadataFile(file, EXTENSION);
+    }
+
+    /**
+     * 
+     * @param file
+     * @return True if some ranges of this file are still expected
+     */
+    public synchronized boolean isPending(File file) {
+        return states.containsKey(file.getAbsolutePath()) || getJournalFile(file).isFile();
+    }
+
+    /**
+     * 
+     * @param file
+     * @return True if the total size of this file is already known from a previous ranged Store
+     */
+    public synchronized boolean hasTotal(File file) {
+        RangeState state = states.get(file.getAbsolutePath());
+        if (state == null) {
+            state = load(getJournalFile(file));
+        }
+        return state.total >= 0;
+    }
+
+    /**
+     * Start a ranged Store
+     * 
+     * @param file
+     * @param total
+     *            the total size of the file (from ALLO), 0 if unknown
+     * @throws IOException
+     *             if the total size is not known, or if the file cannot be extended to it
+     */
+    public synchronized void begin(File file, long total) throws IOException {
+        String path = file.getAbsolutePath();
+        RangeState state = states.get(path);
+        if (state == null) {
+            state = load(getJournalFile(file));
+        }
+        if (total <= 0 && state.total < 0) {
+            throw new IOException("Total size of the ranged file unknown");
+        }
+        if (total > 0 && state.total < 0) {
+            if (file.length() < total) {
+                // allocated once for all the ranges
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                try {
+                    randomAccessFile.setLength(total);
+                } finally {
+                    randomAccessFile.close();
+                }
+            }
+            state.total = total;
+        }
+        state.active++;
+        states.put(path, state);
+        save(getJournalFile(file), state);
+    }
+
+    /**
+     * End a ranged Store, committing the bytes written
+     * 
+     * @param file
+     * @param start
+     *            first byte written
+     * @param end
+     *            end of the bytes written (exclusive), start if none
+     * @return True if the file is now complete
+     */
+    public synchronized boolean commit(File file, long start, long end) {
+        String path = file.getAbsolutePath();
+        RangeState state = states.get(path);
+        if (state == null) {
+            return false;
+        }
+        state.active--;
+        if (end > start) {
+            state.add(start, end);
+        }
+        if (state.isComplete()) {
+            if (state.total >= 0 && file.length() > state.total) {
+                try {
+                    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                    try {
+                        randomAccessFile.setLength(state.total);
+                    } finally {
+                        randomAccessFile.close();
+                    }
+                } catch (IOException e) {
+                    logger.warn("Cannot trim ranged file: " + e.getMessage());
+                    save(getJournalFile(file), state);
+                    return false;
+                }
+            }
+            states.remove(path);
+            File journal = getJournalFile(file);
+            if (journal.exists() && !journal.delete()) {
+                logger.warn("Range journal cannot be deleted: " + journal);
+            }
+            logger.debug("All ranges committed for " + path);
+            return true;
+        }
+        save(getJournalFile(file), state);
+        if (state.active <= 0) {
+            // kept in the journal only
+            states.remove(path);
+        }
+        return false;
+    }
+
+    /**
+     * Forget the committed ranges of this file (replaced or deleted) if no ranged Store is in
+     * progress
+     * 
+     * @param file
+     * @return False if some ranged Store is in progress
+     */
+    public synchronized boolean discard(File file) {
+        if (states.containsKey(file.getAbsolutePath())) {
+            return false;
+        }
+        File journal = getJournalFile(file);
+        if (journal.exists() && !journal.delete()) {
+            logger.warn("Range journal cannot be deleted: " + journal);
+        }
+        return true;
+    }
+
+    private static RangeState load(File journal) {
+        RangeState state = new RangeState();
+        if (!journal.isFile()) {
+            return state;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                logger.warn("Range journal ignored since not compatible: " + journal);
+                return state;
+            }
+            state.total = input.readLong();
+            int nb = input.readInt();
+            for (int i = 0; i < nb; i++) {
+                long start = input.readLong();
+                long end = input.readLong();
+                state.add(start, end);
+            }
+        } catch (IOException e) {
+            logger.warn("Range journal partially loaded: " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return state;
+    }
+
+    private static void save(File journal, RangeState state) {
+        File temp = new File(journal.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            File directory = journal.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                logger.warn("Metadata directory cannot be created: " + directory);
+                return;
+            }
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(state.total);
+            output.writeInt(state.ranges.size());
+            for (long[] range : state.ranges) {
+                output.writeLong(range[0]);
+                output.writeLong(range[1]);
+            }
+            output.close();
+            output = null;
+            if (journal.exists() && !journal.delete()) {
+                logger.warn("Range journal cannot be replaced: " + journal);
+                return;
+            }
+            if (!temp.renameTo(journal)) {
+                logger.warn("Range journal cannot be renamed: " + journal);
+            }
+        } catch (IOException e) {
+            logger.warn("Range journal cannot be saved: " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                }
+                temp.delete();
+            }
+        }
+    }
+}
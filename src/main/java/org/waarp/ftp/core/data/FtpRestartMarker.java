@@ -0,0 +1,95 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.common.utility.WaarpStringUtils;
+
+/**
+ * Restart marker of MODE B (RFC 959 3.5): a block with the RESTART descriptor (16) whose data is
+ * the marker itself, a string of printable characters.<br>
+ * <br>
+ * Markers sent by this server are the byte position in the file of the next data, such that the
+ * client can use it as is in a REST command. Markers received from a client are answered on the
+ * control connection by "110 MARK ssss = rrrr" where rrrr is the byte position in the stored
+ * file.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpRestartMarker {
+    /**
+     * Descriptor of a restart marker block
+     */
+    public static final int DESCRIPTOR = 16;
+
+    /**
+     * Marker as sent or received
+     */
+    private final String marker;
+
+    /**
+     * @param position
+     *            the byte position in the file of the next data
+     */
+    public FtpRestartMarker(long position) {
+        this.marker = Long.toString(position);
+    }
+
+    /**
+     * @param marker
+     *            the marker as received
+     */
+    public FtpRestartMarker(String marker) {
+        this.marker = marker;
+    }
+
+    /**
+     * @return the marker
+     */
+    public String getMarker() {
+        return marker;
+    }
+
+    /**
+     * 
+     * @return the MODE B block (header and marker) of this marker
+     */
+    public ByteBuf toBlock() {
+        byte[] bytes = marker.getBytes(WaarpStringUtils.UTF8);
+        return Unpooled.wrappedBuffer(new byte[] { (byte) DESCRIPTOR,
+                (byte) ((bytes.length >> 8) & 0xFF), (byte) (bytes.length & 0xFF) }, bytes);
+    }
+
+    /**
+     * 
+     * @param buffer
+     *            the data of a MODE B block with the RESTART descriptor
+     * @return the associated marker
+     */
+    public static FtpRestartMarker fromBlock(ByteBuf buffer) {
+        return new FtpRestartMarker(buffer.toString(WaarpStringUtils.UTF8).trim());
+    }
+
+    @Override
+    public String toString() {
+        return "MARK " + marker;
+    }
+}
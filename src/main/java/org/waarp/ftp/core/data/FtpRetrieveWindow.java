@@ -0,0 +1,199 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.config.FtpInternalConfiguration;
+
+/**
+ * Bounded window of pending writes for Retrieve like transfers.<br>
+ * <br>
+ * Instead of waiting for each block to be written before reading the next one, the retrieve
+ * loop can keep up to a maximum number of blocks (or bytes) in flight. The caller is paused
+ * when the window is full or when the channel is no more writable, and resumed as soon as
+ * earlier writes complete or the channel becomes writable again.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class FtpRetrieveWindow {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpRetrieveWindow.class);
+
+    /**
+     * Associated Data Channel
+     */
+    private final Channel channel;
+
+    /**
+     * Maximum number of blocks in flight
+     */
+    private final int maxBlocks;
+
+    /**
+     * Maximum number of bytes in flight
+     */
+    private final long maxBytes;
+
+    /**
+     * Current number of blocks in flight
+     */
+    private int inFlightBlocks = 0;
+
+    /**
+     * Current number of bytes in flight
+     */
+    private long inFlightBytes = 0;
+
+    /**
+     * First error received from a write if any
+     */
+    private volatile Throwable cause = null;
+
+    /**
+     * Last write future
+     */
+    private volatile ChannelFuture lastFuture = null;
+
+    /**
+     *
+     * @param channel
+     * @param maxBlocks
+     *            maximum number of blocks in flight (minimum 1)
+     * @param maxBytes
+     *            maximum number of bytes in flight (0 means no byte limit)
+     */
+    public FtpRetrieveWindow(Channel channel, int maxBlocks, long maxBytes) {
+        this.channel = channel;
+        this.maxBlocks = maxBlocks < 1 ? 1 : maxBlocks;
+        this.maxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+    }
+
+    /**
+     * Listener releasing the window slot of one write
+     */
+    private class WindowListener implements ChannelFutureListener {
+        private final int size;
+
+        private WindowListener(int size) {
+            this.size = size;
+        }
+
+        public void operationComplete(ChannelFuture future) throws Exception {
+            synchronized (FtpRetrieveWindow.this) {
+                inFlightBlocks--;
+                inFlightBytes -= size;
+                if (!future.isSuccess() && cause == null) {
+                    cause = future.cause() != null ? future.cause()
+                            : new FileTransferException("Write is not successful");
+                }
+                FtpRetrieveWindow.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write the message as soon as the window allows it, without waiting for the write itself
+     *
+     * @param msg
+     * @param size
+     *            the size in bytes of the message
+     * @return the ChannelFuture of the write
+     * @throws FileTransferException
+     *             if a previous write failed or if the wait is interrupted
+     */
+    public ChannelFuture write(Object msg, int size) throws FileTransferException {
+        synchronized (this) {
+            while (cause == null && inFlightBlocks > 0 &&
+                    (inFlightBlocks >= maxBlocks ||
+                            inFlightBytes + size > maxBytes || !channel.isWritable())) {
+                waitForSlot();
+            }
+            checkError();
+            inFlightBlocks++;
+            inFlightBytes += size;
+        }
+        ChannelFuture future = channel.writeAndFlush(msg);
+        lastFuture = future;
+        future.addListener(new WindowListener(size));
+        return future;
+    }
+
+    /**
+     * Wait for all pending writes to be done
+     *
+     * @throws FileTransferException
+     *             if one write failed or if the wait is interrupted
+     */
+    public void drain() throws FileTransferException {
+        synchronized (this) {
+            while (cause == null && inFlightBlocks > 0) {
+                waitForSlot();
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * Wake up the writer (called when the writability of the channel changes)
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     *
+     * @return True if one write failed
+     */
+    public boolean isFailed() {
+        return cause != null;
+    }
+
+    /**
+     *
+     * @return the last write future if any
+     */
+    public ChannelFuture getLastFuture() {
+        return lastFuture;
+    }
+
+    private void waitForSlot() throws FileTransferException {
+        try {
+            // timed wait to recheck the channel writability even without any event
+            wait(FtpInternalConfiguration.WAITFORNETOP);
+        } catch (InterruptedException e) {
+            throw new FileTransferException("Interrupted while waiting for write");
+        }
+    }
+
+    private void checkError() throws FileTransferException {
+        if (cause != null) {
+            logger.debug("Write in error", cause);
+            throw new FileTransferException("File transfer in error");
+        }
+    }
+}
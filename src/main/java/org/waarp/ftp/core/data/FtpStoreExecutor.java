@@ -0,0 +1,228 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.ftp.core.config.FtpConfiguration;
+
+/**
+ * Executors dedicated to the disk writes of Store like transfers.<br>
+ * <br>
+ * One bounded pool of {@link FtpConfiguration#getStoreThreads()} threads is used per storage
+ * device, such that a slow device only delays the writes targeting it, and never the network
+ * threads. Each writer gets its own serial queue on this pool, keeping its writes in order while
+ * the writes of different sessions run in parallel. A storage device is identified by the
+ * longest path prefix declared in {@link FtpConfiguration#getStoreDevices()}, all other paths
+ * sharing one default pool.<br>
+ * <br>
+ * The end of a file (close and synchronization) may block for a long time: it runs
+ * on a separate pool, releasing its threads when idle, and never on the write queues.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpStoreExecutor {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpStoreExecutor.class);
+
+    /**
+     * Default device name
+     */
+    private static final String DEFAULT_DEVICE = "";
+
+    /**
+     * Configuration
+     */
+    private final FtpConfiguration configuration;
+
+    /**
+     * One pool per device, lazily created
+     */
+    private final ConcurrentHashMap<String, ExecutorService> executors =
+            new ConcurrentHashMap<String, ExecutorService>();
+
+    /**
+     * Pool for the end of the files
+     */
+    private final ExecutorService closeExecutor = Executors.newCachedThreadPool(
+            new WaarpThreadFactory("StoreCloser"));
+
+    /**
+     * 
+     * @param configuration
+     */
+    public FtpStoreExecutor(FtpConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * 
+     * @param path
+     *            the real path of the file to write on the storage
+     * @return the device associated with this path
+     */
+    public String getDevice(String path) {
+        String device = DEFAULT_DEVICE;
+        if (path == null) {
+            return device;
+        }
+        for (String prefix : configuration.getStoreDevices()) {
+            if (path.startsWith(prefix) && prefix.length() > device.length()) {
+                device = prefix;
+            }
+        }
+        return device;
+    }
+
+    /**
+     * 
+     * @param path
+     *            the real path of the file to write on the storage
+     * @return the pool associated with the device of this path (no order between tasks)
+     */
+    public ExecutorService getExecutor(String path) {
+        String device = getDevice(path);
+        ExecutorService executor = executors.get(device);
+        if (executor == null) {
+            int threads = configuration.getStoreThreads();
+            ExecutorService newExecutor = new ThreadPoolExecutor(threads, threads, 0L,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new WaarpThreadFactory("StoreWriter" + device));
+            executor = executors.putIfAbsent(device, newExecutor);
+            if (executor == null) {
+                logger.debug("New Store pool of " + threads + " threads for device: '" +
+                        device + "'");
+                executor = newExecutor;
+            } else {
+                newExecutor.shutdown();
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 
+     * @param path
+     *            the real path of the file to write on the storage
+     * @return a new serial queue on the pool of the device of this path
+     */
+    public Executor newSerialQueue(String path) {
+        return new SerialQueue(getExecutor(path));
+    }
+
+    /**
+     * 
+     * @return the pool for the end of the files (close and synchronization)
+     */
+    public ExecutorService getCloseExecutor() {
+        return closeExecutor;
+    }
+
+    /**
+     * Release all pools
+     */
+    public void releaseResources() {
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdown();
+        }
+        executors.clear();
+        closeExecutor.shutdown();
+    }
+
+    /**
+     * Tasks executed one at a time and in order on a pool
+     */
+    private static class SerialQueue implements Executor {
+        private final ExecutorService pool;
+
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        /**
+         * True when one task of this queue is in the pool
+         */
+        private boolean scheduled = false;
+
+        private final Runnable runNext = new Runnable() {
+            public void run() {
+                runNext();
+            }
+        };
+
+        private SerialQueue(ExecutorService pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * @throws RejectedExecutionException
+         *             if the pool is shutdown
+         */
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (!scheduled) {
+                scheduled = true;
+                try {
+                    pool.execute(runNext);
+                } catch (RejectedExecutionException e) {
+                    scheduled = false;
+                    tasks.clear();
+                    throw e;
+                }
+            }
+        }
+
+        private void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        scheduled = false;
+                    } else {
+                        try {
+                            // back in the pool to be fair with other writers
+                            pool.execute(runNext);
+                        } catch (RejectedExecutionException e) {
+                            logger.debug("Rejected execution (shutdown) of Store write");
+                            scheduled = false;
+                            tasks.clear();
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
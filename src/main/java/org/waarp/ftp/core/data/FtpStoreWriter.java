@@ -0,0 +1,239 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import io.netty.channel.Channel;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.file.FtpFile;
+import org.waarp.ftp.core.session.FtpSession;
+
+/**
+ * Asynchronous writer for Store like transfers.<br>
+ * <br>
+ * Received blocks are handed to a serial queue of this writer on the pool of the storage device
+ * (see {@link FtpStoreExecutor}), in order, such that the data thread is never blocked by the
+ * disk. The last block of a file, which also closes and synchronizes it, is run on the close pool
+ * once the previous blocks are written, such that it never holds the write queue. The number of
+ * bytes waiting to be written is bounded: once the budget is exhausted, the reading of the data
+ * channel is suspended, and resumed when half of the budget is available again.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpStoreWriter {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpStoreWriter.class);
+
+    /**
+     * Associated session
+     */
+    private final FtpSession session;
+
+    /**
+     * Associated Data Channel
+     */
+    private final Channel channel;
+
+    /**
+     * Maximum number of bytes waiting to be written
+     */
+    private final long maxBytes;
+
+    /**
+     * Current number of bytes waiting to be written
+     */
+    private long pendingBytes = 0;
+
+    /**
+     * Current number of blocks waiting to be written
+     */
+    private int pendingBlocks = 0;
+
+    /**
+     * True if the reading of the channel is suspended by this writer
+     */
+    private boolean suspended = false;
+
+    /**
+     * Current file and its serial queue
+     */
+    private FtpFile currentFile = null;
+    private Executor executor = null;
+
+    /**
+     * Tasks to run once every block given is written and its file closed
+     */
+    private List<Runnable> whenFinished = new ArrayList<Runnable>();
+
+    /**
+     * 
+     * @param session
+     * @param channel
+     * @param maxBytes
+     *            maximum number of bytes waiting to be written
+     */
+    public FtpStoreWriter(FtpSession session, Channel channel, long maxBytes) {
+        this.session = session;
+        this.channel = channel;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Write the block asynchronously. The buffer of the block is retained until written, so the
+     * caller keeps the responsibility of its own reference.
+     * 
+     * @param file
+     * @param dataBlock
+     */
+    public void write(final FtpFile file, final DataBlock dataBlock) {
+        final int size = dataBlock.getByteCount();
+        Executor service;
+        synchronized (this) {
+            if (file != currentFile) {
+                String path = null;
+                try {
+                    path = file.getStoragePath();
+                } catch (CommandAbstractException e) {
+                }
+                currentFile = file;
+                executor = session.getConfiguration().getFtpInternalConfiguration()
+                        .getStoreExecutor().newSerialQueue(path);
+            }
+            service = executor;
+            pendingBytes += size;
+            pendingBlocks++;
+            if (!suspended && pendingBytes >= maxBytes) {
+                suspended = true;
+                channel.config().setAutoRead(false);
+                logger.debug("Store suspended with " + pendingBytes + " bytes pending");
+            }
+        }
+        dataBlock.getBlock().retain();
+        final Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    file.writeDataBlock(dataBlock);
+                } catch (FileTransferException e) {
+                    logger.debug(e);
+                    session.getDataConn().getFtpTransferControl()
+                            .setTransferAbortedFromInternal(true);
+                } finally {
+                    dataBlock.getBlock().release();
+                    written(size);
+                }
+            }
+        };
+        try {
+            if (dataBlock.isEOF()) {
+                // close and synchronization out of the write queue
+                service.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            session.getConfiguration().getFtpInternalConfiguration()
+                                    .getStoreExecutor().getCloseExecutor().execute(task);
+                        } catch (RejectedExecutionException e) {
+                            task.run();
+                        }
+                    }
+                });
+            } else {
+                service.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            logger.debug(e);
+            dataBlock.getBlock().release();
+            written(size);
+            session.getDataConn().getFtpTransferControl()
+                    .setTransferAbortedFromInternal(true);
+        }
+    }
+
+    /**
+     * Run the task once all blocks already given are written, in order with the writes (the
+     * close of a file may still be running)
+     * 
+     * @param task
+     */
+    public void runWhenWritten(Runnable task) {
+        Executor service;
+        synchronized (this) {
+            service = pendingBlocks > 0 ? executor : null;
+        }
+        if (service != null) {
+            try {
+                service.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                logger.debug(e);
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Run the task once all blocks already given are written and their files closed
+     * 
+     * @param task
+     */
+    public void runWhenFinished(Runnable task) {
+        synchronized (this) {
+            if (pendingBlocks > 0) {
+                whenFinished.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    private void written(int size) {
+        List<Runnable> tasks = null;
+        synchronized (this) {
+            pendingBytes -= size;
+            pendingBlocks--;
+            if (suspended && pendingBytes <= maxBytes / 2) {
+                suspended = false;
+                if (channel.isActive()) {
+                    channel.config().setAutoRead(true);
+                    logger.debug("Store resumed with " + pendingBytes + " bytes pending");
+                }
+            }
+            if (pendingBlocks == 0 && !whenFinished.isEmpty()) {
+                tasks = whenFinished;
+                whenFinished = new ArrayList<Runnable>();
+            }
+        }
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
@@ -20,8 +20,7 @@ package org.waarp.ftp.core.data;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.Bootstrap;
@@ -39,7 +38,6 @@ import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.command.FtpCommandCode;
 import org.waarp.ftp.core.command.service.ABOR;
 import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.control.NetworkHandler;
 import org.waarp.ftp.core.data.handler.DataNetworkHandler;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
@@ -80,6 +78,11 @@ public class FtpTransferControl {
      */
     private volatile WaarpChannelFuture waitForOpenedDataChannel = new WaarpChannelFuture(true);
 
+    /**
+     * Waiter for the last opened dataChannel to be closed and released
+     */
+    private volatile WaarpChannelFuture waitForClosedDataChannel = null;
+
     /**
      * Is the current Command Finished (or previously current command)
      */
@@ -100,9 +103,9 @@ public class FtpTransferControl {
     private volatile FtpTransfer executingCommand = null;
 
     /**
-     * Thread pool for execution of transfer command
+     * Serial queue of this session on the shared pool for execution of transfer command
      */
-    private ExecutorService executorService = null;
+    private FtpTransferScheduler.SerialQueue transferQueue = null;
 
     /**
      * Blocking step for the Executor in order to wait for the end of the command (internal wait,
@@ -135,18 +138,16 @@ public class FtpTransferControl {
     }
 
     /**
-     * Wait for the DataNetworkHandler to be ready (from trueRetrieve of {@link FtpFile})
+     * Check that the DataNetworkHandler is ready (from trueRetrieve of {@link FtpFile}). Since
+     * it is set ready before the transfer is launched, there is nothing to wait for.
      * 
      * @throws InterruptedException
      * 
      */
     public void waitForDataNetworkHandlerReady() throws InterruptedException {
         if (!isDataNetworkHandlerReady) {
-            Thread.sleep(10);
-            if (!isDataNetworkHandlerReady) {
-                // logger.debug("Wait for DataNetwork Ready over {}");
-                throw new InterruptedException("Bad initialization");
-            }
+            // logger.debug("Wait for DataNetwork Ready over {}");
+            throw new InterruptedException("Bad initialization");
         }
     }
 
@@ -161,6 +162,9 @@ public class FtpTransferControl {
         logger.debug("SetOpenedDataChannel: " + (channel != null ? channel.remoteAddress() : "no channel"));
         if (channel != null) {
             session.getDataConn().setDataNetworkHandler(dataNetworkHandler);
+            WaarpChannelFuture closed = new WaarpChannelFuture(true);
+            closed.setChannel(channel);
+            waitForClosedDataChannel = closed;
             waitForOpenedDataChannel.setChannel(channel);
             waitForOpenedDataChannel.setSuccess();
         } else {
@@ -168,6 +172,29 @@ public class FtpTransferControl {
         }
     }
 
+    /**
+     * Set the Channel as closed and released (from channelInactive of {@link DataNetworkHandler})
+     * 
+     * @param channel
+     */
+    public void setClosedDataChannel(Channel channel) {
+        WaarpChannelFuture closed = waitForClosedDataChannel;
+        if (closed != null && closed.channel() == channel) {
+            closed.setSuccess();
+        }
+    }
+
+    /**
+     * Wait for the last opened Channel to be closed and released by its
+     * {@link DataNetworkHandler}, such that a following command will not share its state
+     */
+    private void waitForClosedDataChannel() {
+        WaarpChannelFuture closed = waitForClosedDataChannel;
+        if (closed != null && !closed.awaitUninterruptibly(FtpConfiguration.getDATATIMEOUTCON())) {
+            logger.warn("Timeout occurs while waiting for the data connection to be released");
+        }
+    }
+
     /**
      * Wait that the new opened connection is ready (same method in {@link FtpDataAsyncConn} from
      * openConnection)
@@ -360,11 +387,18 @@ public class FtpTransferControl {
             //e1.printStackTrace();
         }*/
         // Run the command
-        if (executorService == null) {
-            executorService = Executors.newSingleThreadExecutor();
+        if (transferQueue == null) {
+            transferQueue = session.getConfiguration().getFtpInternalConfiguration()
+                    .getTransferScheduler().newSerialQueue();
+        }
+        try {
+            transferQueue.execute(new FtpTransferExecutor(session,
+                    executingCommand));
+        } catch (RejectedExecutionException e) {
+            // shutdown or too many transfers executing
+            logger.warn("Rejected execution of transfer: " + e.getMessage());
+            setTransferAbortedFromInternal(false);
         }
-        executorService.execute(new FtpTransferExecutor(session,
-                executingCommand));
         try {
             commandFinishing.await();
             if (commandFinishing.isFailed()) {
@@ -425,25 +459,10 @@ public class FtpTransferControl {
         }
     }
 
-    public boolean waitFtpTransferExecuting() {
-        boolean notFinished = true;
-        for (int i = 0; i < FtpInternalConfiguration.RETRYNB * 100; i++) {
-            if (isExecutingCommandFinished
-                    || commandFinishing == null
-                    || session.isCurrentCommandFinished()
-                    ||
-                    (commandFinishing != null && commandFinishing
-                            .awaitUninterruptibly(FtpInternalConfiguration.RETRYINMS))) {
-                notFinished = false;
-                break;
-            }
-        }
-        return notFinished;
-    }
-
     /**
      * Is a command currently executing (called from {@link NetworkHandler} when a message is
-     * received to see if another transfer command is already in execution, which is not allowed)
+     * received to see if another transfer command is already in execution, in which case the
+     * message is kept until the end of this transfer)
      * 
      * @return True if a command is currently executing
      */
@@ -609,6 +628,11 @@ public class FtpTransferControl {
         } catch (FtpNoFileException e) {
         } catch (CommandAbstractException e) {
             logger.warn("Close problem", e);
+            if (FtpCommandCode.isStoreLikeCommand(current.getCommand())) {
+                // the stored file is not complete or not durable
+                abortTransfer();
+                return;
+            }
         }
         if (current != null) {
             current.setStatus(true);
@@ -627,12 +651,10 @@ public class FtpTransferControl {
                 } catch (CommandAbstractException e) {
                     session.setReplyCode(e);
                 }
-            } else {
-                // Special wait to prevent fast LIST following by STOR or RETR command
-                try {
-                    Thread.sleep(FtpInternalConfiguration.RETRYINMS);
-                } catch (InterruptedException e) {
-                }
+            } else if (session.getDataConn().isStreamFile()) {
+                // Prevent fast LIST following by STOR or RETR command to
+                // be mixed with the release of the closed connection
+                waitForClosedDataChannel();
             }
         }
         finalizeExecution();
@@ -702,12 +724,17 @@ public class FtpTransferControl {
      */
     private void finalizeExecution() {
         // logger.debug("Finalize execution");
+        isExecutingCommandFinished = true;
+        executingCommand = null;
         if (commandFinishing != null) {
             commandFinishing.setSuccess();
         }
-        isExecutingCommandFinished = true;
-        executingCommand = null;
         resetWaitForOpenedDataChannel();
+        // Now the commands received during the transfer could be run
+        NetworkHandler networkHandler = session.getNetworkHandler();
+        if (networkHandler != null) {
+            networkHandler.ftpTransferFinished();
+        }
     }
 
     // XXX Finalize of Transfer
@@ -746,9 +773,8 @@ public class FtpTransferControl {
         if (commandSetup != null) {
             commandSetup.cancel();
         }
-        if (executorService != null) {
-            executorService.shutdownNow();
-            executorService = null;
+        if (transferQueue != null) {
+            transferQueue.cancel();
         }
     }
 }
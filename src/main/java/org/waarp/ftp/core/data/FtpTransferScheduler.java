@@ -0,0 +1,256 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpExecutionProvider;
+
+/**
+ * Scheduler shared by all sessions for the execution of their transfers.<br>
+ * <br>
+ * Each session gets its own serial queue, such that its transfers are executed one at a time
+ * and in order. A transfer holds its thread until its end (it waits for the data channel), so
+ * the queues are not multiplexed onto a fixed number of threads: each queue with a transfer to
+ * run gets its own thread from a cached pool, released once idle, or a virtual thread in VIRTUAL
+ * execution mode. {@link FtpConfiguration#getTransferThreads()} may limit the number of
+ * transfers executing at once, a transfer beyond this limit being refused rather than waiting
+ * behind the transfers of other sessions.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpTransferScheduler {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpTransferScheduler.class);
+
+    /**
+     * Configuration
+     */
+    private final FtpConfiguration configuration;
+
+    /**
+     * Shared executor (lazily created once the configuration is loaded)
+     */
+    private ExecutorService pool = null;
+
+    /**
+     * Number of tasks waiting in the serial queues
+     */
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+
+    /**
+     * Number of tasks currently running
+     */
+    private final AtomicInteger activeTasks = new AtomicInteger();
+
+    /**
+     * Number of tasks already run
+     */
+    private final AtomicLong completedTasks = new AtomicLong();
+
+    /**
+     * 
+     * @param configuration
+     */
+    public FtpTransferScheduler(FtpConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    private synchronized ExecutorService getPool() {
+        if (pool == null) {
+            FtpExecutionProvider provider = configuration.getFtpInternalConfiguration()
+                    .getExecutionProvider();
+            if (provider != null) {
+                logger.debug("Transfers on executor from " + provider.getClass().getName());
+                pool = provider.newTransferExecutor();
+                return pool;
+            }
+            int threads = configuration.getTransferThreads();
+            if (threads <= 0) {
+                threads = Integer.MAX_VALUE;
+            }
+            logger.debug("Transfer pool of at most " + threads + " threads");
+            // no queue: one thread per session executing a transfer, released after 60s idle
+            pool = new ThreadPoolExecutor(0, threads, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new WaarpThreadFactory("Transfer"));
+        }
+        return pool;
+    }
+
+    /**
+     * 
+     * @return a new serial queue for one session
+     */
+    public SerialQueue newSerialQueue() {
+        return new SerialQueue();
+    }
+
+    /**
+     * 
+     * @return the current number of threads of the pool (0 if not a pool)
+     */
+    public synchronized int getPoolSize() {
+        if (pool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) pool).getPoolSize();
+        }
+        return 0;
+    }
+
+    /**
+     * 
+     * @return the number of transfers currently executing
+     */
+    public int getActiveCount() {
+        return activeTasks.get();
+    }
+
+    /**
+     * 
+     * @return the number of transfers waiting for the end of the previous transfer of their
+     *         session
+     */
+    public int getQueueSize() {
+        return pendingTasks.get();
+    }
+
+    /**
+     * 
+     * @return the number of transfers already executed
+     */
+    public long getCompletedCount() {
+        return completedTasks.get();
+    }
+
+    /**
+     * Release the pool
+     */
+    public synchronized void releaseResources() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Serial queue of one session: its tasks are executed one at a time and in order, by one
+     * thread of the shared pool as long as some are waiting
+     */
+    public class SerialQueue implements Executor {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        /**
+         * True when one task of this queue is in the pool
+         */
+        private boolean scheduled = false;
+
+        /**
+         * Thread running the current task of this queue if any
+         */
+        private Thread runner = null;
+
+        private final Runnable runNext = new Runnable() {
+            public void run() {
+                runNext();
+            }
+        };
+
+        private SerialQueue() {
+        }
+
+        /**
+         * Add a task to this queue
+         * 
+         * @throws RejectedExecutionException
+         *             if the scheduler is shutdown or too many transfers are executing
+         */
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+            pendingTasks.incrementAndGet();
+            if (!scheduled) {
+                schedule();
+            }
+        }
+
+        /**
+         * Cancel the waiting tasks and interrupt the running one if any
+         */
+        public synchronized void cancel() {
+            pendingTasks.addAndGet(-tasks.size());
+            tasks.clear();
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        private void schedule() {
+            scheduled = true;
+            try {
+                getPool().execute(runNext);
+            } catch (RejectedExecutionException e) {
+                scheduled = false;
+                pendingTasks.addAndGet(-tasks.size());
+                tasks.clear();
+                throw e;
+            }
+        }
+
+        private void runNext() {
+            for (;;) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    pendingTasks.decrementAndGet();
+                    runner = Thread.currentThread();
+                }
+                activeTasks.incrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.warn("Transfer execution in error", e);
+                } finally {
+                    activeTasks.decrementAndGet();
+                    completedTasks.incrementAndGet();
+                    synchronized (this) {
+                        runner = null;
+                        // an interruption was only targeting this queue
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+    }
+}
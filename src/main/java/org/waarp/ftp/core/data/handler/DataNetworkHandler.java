@@ -33,6 +33,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
 
+import org.waarp.common.command.ReplyCode;
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.exception.InvalidArgumentException;
@@ -43,11 +44,17 @@ import org.waarp.common.utility.WaarpStringUtils;
 import org.waarp.ftp.core.config.FtpConfiguration;
 import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.control.NetworkHandler;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
+import org.waarp.ftp.core.data.FtpRestartMarker;
+import org.waarp.ftp.core.data.FtpRetrieveWindow;
+import org.waarp.ftp.core.data.FtpStoreWriter;
 import org.waarp.ftp.core.data.FtpTransfer;
 import org.waarp.ftp.core.data.FtpTransferControl;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.exception.FtpNoFileException;
 import org.waarp.ftp.core.exception.FtpNoTransferException;
+import org.waarp.ftp.core.file.FtpFile;
+import org.waarp.ftp.core.file.FtpOffsetIndex;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
 
@@ -98,7 +105,17 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
      * The associated FtpTransfer
      */
     private volatile FtpTransfer ftpTransfer = null;
-    
+
+    /**
+     * The current Retrieve window if any
+     */
+    private volatile FtpRetrieveWindow retrieveWindow = null;
+
+    /**
+     * The asynchronous writer for Store like transfers if any
+     */
+    private volatile FtpStoreWriter storeWriter = null;
+
     /**
      * Constructor from DataBusinessHandler
      * 
@@ -151,25 +168,47 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         logger.debug("Data Channel closed with a session ? "+(session !=null));
         if (session != null) {
-            if (session.getDataConn().checkCorrectChannel(ctx.channel())) {
-                session.getDataConn().getFtpTransferControl().setPreEndOfTransfer();
+            final Channel channel = ctx.channel();
+            FtpStoreWriter writer = storeWriter;
+            if (writer != null) {
+                // the end of transfer must follow the last write and close on disk
+                writer.runWhenFinished(new Runnable() {
+                    public void run() {
+                        endOfDataChannel(channel);
+                    }
+                });
             } else {
-                session.getDataConn().getFtpTransferControl().setTransferAbortedFromInternal(true);
+                endOfDataChannel(channel);
             }
-            session.getDataConn().unbindPassive();
-            try {
-                getDataBusinessHandler().executeChannelClosed();
-                // release file and other permanent objects
-                getDataBusinessHandler().clear();
-            } catch (FtpNoConnectionException e1) {
-            }
-            dataBusinessHandler = null;
-            channelPipeline = null;
-            dataChannel = null;
         }
         super.channelInactive(ctx);
     }
 
+    /**
+     * Finalize the transfer and the business handler once the Data Channel is closed
+     * 
+     * @param channel
+     */
+    private void endOfDataChannel(Channel channel) {
+        if (session.getDataConn().checkCorrectChannel(channel)) {
+            session.getDataConn().getFtpTransferControl().setPreEndOfTransfer();
+        } else {
+            session.getDataConn().getFtpTransferControl().setTransferAbortedFromInternal(true);
+        }
+        session.getDataConn().unbindPassive();
+        try {
+            getDataBusinessHandler().executeChannelClosed();
+            // release file and other permanent objects
+            getDataBusinessHandler().clear();
+        } catch (FtpNoConnectionException e1) {
+        }
+        dataBusinessHandler = null;
+        channelPipeline = null;
+        dataChannel = null;
+        storeWriter = null;
+        session.getDataConn().getFtpTransferControl().setClosedDataChannel(channel);
+    }
+
     protected void setSession(Channel channel) {
         // First get the ftpSession from inetaddresses
         for (int i = 0; i < FtpInternalConfiguration.RETRYNB; i++) {
@@ -214,6 +253,10 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
         }
         channelPipeline = ctx.pipeline();
         dataChannel = channel;
+        if (configuration.getStoreWriteBudget() > 0) {
+            storeWriter = new FtpStoreWriter(session, channel,
+                    configuration.getStoreWriteBudget());
+        }
         dataBusinessHandler.setFtpSession(getFtpSession());
         FtpChannelUtils.addDataChannel(channel, session.getConfiguration());
         logger.debug("DataChannel connected: " + session.getReplyCode());
@@ -247,7 +290,9 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
     }
 
     /**
-     * Set the CODEC according to the mode. Must be called after each call of MODE, STRU or TYPE
+     * Set the CODEC according to the mode. Must be called after each call of MODE, STRU or TYPE.<br>
+     * The Type and Structure codecs are immutable: they are replaced in the pipeline if their
+     * settings changed, such that the data path only reads final fields.
      */
     public void setCorrectCodec() {
         FtpDataModeCodec modeCodec = (FtpDataModeCodec) channelPipeline
@@ -259,11 +304,14 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
         if (modeCodec == null || typeCodec == null || structureCodec == null) {
             return;
         }
-        modeCodec.setMode(session.getDataConn().getMode());
-        modeCodec.setStructure(session.getDataConn().getStructure());
-        typeCodec.setFullType(session.getDataConn().getType(), session
-                .getDataConn().getSubType());
-        structureCodec.setStructure(session.getDataConn().getStructure());
+        FtpDataAsyncConn dataConn = session.getDataConn();
+        modeCodec.setMode(dataConn.getMode());
+        modeCodec.setStructure(dataConn.getStructure());
+        modeCodec.setType(dataConn.getType());
+        modeCodec.setZlib(dataConn.getZlibLevel(),
+                configuration.getFtpInternalConfiguration().getZlibExecutor());
+        FtpDataInitializer.updateCodecs(channelPipeline, dataConn.getType(),
+                dataConn.getSubType(), dataConn.getCodePage(), dataConn.getStructure());
         logger.debug("codec setup");
     }
 
@@ -347,15 +395,64 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
         }
     }
 
+    /**
+     * Set the current transfer, also giving its offset index (TYPE A) to the Type codec and
+     * resetting the decoding state of the Mode codec
+     * 
+     * @param ftpTransfer
+     */
     public void setFtpTransfer(FtpTransfer ftpTransfer) {
         this.ftpTransfer = ftpTransfer;
+        if (channelPipeline == null) {
+            return;
+        }
+        FtpDataModeCodec modeCodec = (FtpDataModeCodec) channelPipeline
+                .get(FtpDataInitializer.CODEC_MODE);
+        if (modeCodec != null && ftpTransfer != null) {
+            modeCodec.resetTransfer();
+        }
+        FtpDataTypeCodec typeCodec = (FtpDataTypeCodec) channelPipeline
+                .get(FtpDataInitializer.CODEC_TYPE);
+        if (typeCodec != null) {
+            FtpOffsetIndex offsetIndex = null;
+            if (ftpTransfer != null) {
+                try {
+                    offsetIndex = ftpTransfer.getFtpFile().getOffsetIndex();
+                } catch (FtpNoFileException e) {
+                    // List like transfer
+                }
+            }
+            typeCodec.setOffsetIndex(offsetIndex);
+        }
     }
+
     /**
-     * Act as needed according to the receive DataBlock message
+     * Set the current Retrieve window (from trueRetrieve of FtpFile), null to reset it
+     * 
+     * @param retrieveWindow
+     */
+    public void setRetrieveWindow(FtpRetrieveWindow retrieveWindow) {
+        this.retrieveWindow = retrieveWindow;
+    }
+
+    /**
+     * Resume the Retrieve window if any when the channel becomes writable again
      * 
      */
     @Override
-    public void channelRead0(ChannelHandlerContext ctx, DataBlock dataBlock) {
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        FtpRetrieveWindow window = retrieveWindow;
+        if (window != null) {
+            window.wakeUp();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /**
+     * 
+     * @return the current FtpTransfer, or null (and the transfer is aborted) if none
+     */
+    private FtpTransfer getCurrentFtpTransfer() {
         if (ftpTransfer == null) {
             try {
                 ftpTransfer = session.getDataConn().getFtpTransferControl().getExecutingFtpTransfer();
@@ -368,13 +465,80 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
                 logger.debug("No ExecutionFtpTransfer found");
                 session.getDataConn().getFtpTransferControl()
                     .setTransferAbortedFromInternal(true);
-                return;
             }
         }
+        return ftpTransfer;
+    }
+
+    /**
+     * Restart markers received in MODE B are answered on the control connection, other messages
+     * are DataBlocks
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof FtpRestartMarker) {
+            restartMarkerReceived((FtpRestartMarker) msg);
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    /**
+     * Answer "110 MARK ssss = rrrr" once all data received before the marker are written, rrrr
+     * being the byte position in the stored file to use in REST
+     * 
+     * @param marker
+     */
+    private void restartMarkerReceived(final FtpRestartMarker marker) {
+        FtpTransfer transfer = getCurrentFtpTransfer();
+        if (transfer == null) {
+            return;
+        }
+        final FtpFile file;
+        try {
+            file = transfer.getFtpFile();
+        } catch (FtpNoFileException e) {
+            logger.debug(e);
+            return;
+        }
+        Runnable answer = new Runnable() {
+            public void run() {
+                try {
+                    long position = file.checkpointStore();
+                    session.getNetworkHandler().writePreliminaryAnswer(
+                            ReplyCode.REPLY_110_RESTART_MARKER_REPLY,
+                            "MARK " + marker.getMarker() + " = " + position);
+                } catch (FileTransferException e) {
+                    logger.debug("Cannot checkpoint for " + marker, e);
+                }
+            }
+        };
+        FtpStoreWriter writer = storeWriter;
+        if (writer != null) {
+            writer.runWhenWritten(answer);
+        } else {
+            answer.run();
+        }
+    }
+
+    /**
+     * Act as needed according to the receive DataBlock message
+     * 
+     */
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, DataBlock dataBlock) {
+        if (getCurrentFtpTransfer() == null) {
+            return;
+        }
         try {
             if (isStillAlive()) {
                 try {
-                    ftpTransfer.getFtpFile().writeDataBlock(dataBlock);
+                    FtpStoreWriter writer = storeWriter;
+                    if (writer != null) {
+                        writer.write(ftpTransfer.getFtpFile(), dataBlock);
+                    } else {
+                        ftpTransfer.getFtpFile().writeDataBlock(dataBlock);
+                    }
                 } catch (FtpNoFileException e1) {
                     logger.debug(e1);
                     session.getDataConn().getFtpTransferControl()
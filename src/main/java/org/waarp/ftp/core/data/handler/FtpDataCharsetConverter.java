@@ -0,0 +1,501 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+
+/**
+ * Streaming charset converter for ASCII and EBCDIC types, one per channel and per direction.<br>
+ * <br>
+ * Bytes are decoded and encoded through reusable char buffers directly into buffers from the
+ * channel allocator. A character split between two blocks and a trailing CR are kept until the
+ * next block, so that the result does not depend on the block boundaries. End of lines are
+ * normalized according to RFC 959: &lt;CRLF&gt; for ASCII and &lt;NL&gt; for EBCDIC on the
+ * network, the local line separator on the file side.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataCharsetConverter {
+    /**
+     * Size of the intermediate char buffers
+     */
+    private static final int CHAR_BUFFER_SIZE = 8192;
+
+    /**
+     * Maximum number of bytes kept from an incomplete character
+     */
+    private static final int MAX_PENDING_BYTES = 16;
+
+    /**
+     * Size of the blocks read when looking for an offset in a file
+     */
+    private static final int SCAN_SIZE = 65536;
+
+    private static final char CR = '\r';
+
+    private static final char LF = '\n';
+
+    /**
+     * EBCDIC NL as decoded by Java
+     */
+    private static final char NEL = '\u0085';
+
+    /**
+     * True if the local line separator is CRLF
+     */
+    private static final boolean LOCAL_CRLF = "\r\n".equals(System.getProperty("line.separator"));
+
+    /**
+     * Type of transfer
+     */
+    private final TransferType type;
+
+    /**
+     * True for local to network (Retrieve), False for network to local (Store)
+     */
+    private final boolean toNetwork;
+
+    private final CharsetDecoder decoder;
+
+    private final CharsetEncoder encoder;
+
+    /**
+     * Chars from the decoder (write mode)
+     */
+    private final CharBuffer decoded = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+
+    /**
+     * Chars after end of line translation, not yet encoded (write mode)
+     */
+    private final CharBuffer translated = CharBuffer.allocate(CHAR_BUFFER_SIZE * 2 + 4);
+
+    /**
+     * Bytes of an incomplete character from the previous block
+     */
+    private byte[] pendingBytes = new byte[MAX_PENDING_BYTES];
+
+    private int pendingLength = 0;
+
+    /**
+     * A CR was received as last char and is not yet translated
+     */
+    private boolean pendingCR = false;
+
+    /**
+     * Last char sent was a CR
+     */
+    private boolean lastCR = false;
+
+    /**
+     * 
+     * @param type
+     *            ASCII or EBCDIC
+     * @param localCharset
+     *            the charset of the files
+     * @param toNetwork
+     *            True for local to network (Retrieve), False for network to local (Store)
+     */
+    FtpDataCharsetConverter(TransferType type, Charset localCharset, boolean toNetwork) {
+        this.type = type;
+        this.toNetwork = toNetwork;
+        Charset from = toNetwork ? localCharset : type.charset;
+        Charset to = toNetwork ? type.charset : localCharset;
+        decoder = from.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoder = to.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * 
+     * @return True if some bytes or chars are kept from previous blocks
+     */
+    boolean hasPending() {
+        return pendingLength > 0 || pendingCR || translated.position() > 0;
+    }
+
+    /**
+     * 
+     * @return True if nothing is kept from previous blocks, such that a conversion starting from
+     *         here gives the same result (checkpoint of the offset index)
+     */
+    boolean isClean() {
+        return !hasPending() && !lastCR;
+    }
+
+    /**
+     * Convert one block. The source buffer is not released.
+     * 
+     * @param alloc
+     * @param in
+     * @param last
+     *            True if this is the last block, such that everything kept is flushed
+     * @return the converted buffer
+     * @throws CharacterCodingException
+     */
+    ByteBuf convert(ByteBufAllocator alloc, ByteBuf in, boolean last)
+            throws CharacterCodingException {
+        int size = in == null ? 0 : in.readableBytes();
+        ByteBuf out = alloc.buffer(estimate(size + pendingLength));
+        boolean done = false;
+        try {
+            convert(size > 0 ? in.nioBuffer() : null, out, last);
+            done = true;
+            return out;
+        } finally {
+            if (!done) {
+                out.release();
+            }
+        }
+    }
+
+    /**
+     * Convert one block into the given buffer
+     */
+    private void convert(ByteBuffer src, ByteBuf out, boolean last)
+            throws CharacterCodingException {
+        if (src != null && src.hasRemaining()) {
+            if (pendingLength > 0) {
+                completePending(src, out);
+            }
+            decodeAll(src, out, false);
+            keepPending(src);
+        }
+        if (last) {
+            finish(out);
+        }
+    }
+
+    private int estimate(int size) {
+        float ratio = decoder.averageCharsPerByte() * encoder.averageBytesPerChar();
+        return (int) (size * ratio * 1.1f) + 16;
+    }
+
+    /**
+     * Decode the incomplete character of the previous block with the first bytes of this one
+     */
+    private void completePending(ByteBuffer src, ByteBuf out) throws CharacterCodingException {
+        int added = Math.min(src.remaining(), Math.max(MAX_PENDING_BYTES - pendingLength, 0));
+        ByteBuffer first = ByteBuffer.allocate(pendingLength + added);
+        first.put(pendingBytes, 0, pendingLength);
+        for (int i = 0; i < added; i++) {
+            first.put(src.get(src.position() + i));
+        }
+        first.flip();
+        int previous = pendingLength;
+        pendingLength = 0;
+        decodeAll(first, out, false);
+        int consumed = first.position();
+        if (consumed >= previous) {
+            src.position(src.position() + consumed - previous);
+        } else {
+            // still incomplete: everything copied is kept
+            src.position(src.position() + added);
+            keepPending(first);
+        }
+    }
+
+    /**
+     * Keep the remaining bytes of an incomplete character
+     */
+    private void keepPending(ByteBuffer src) {
+        int remaining = src.remaining();
+        if (remaining > pendingBytes.length) {
+            // should not happen with a real charset, but never lose data
+            pendingBytes = new byte[remaining];
+        }
+        src.get(pendingBytes, 0, remaining);
+        pendingLength = remaining;
+    }
+
+    private void decodeAll(ByteBuffer src, ByteBuf out, boolean endOfInput)
+            throws CharacterCodingException {
+        for (;;) {
+            CoderResult result = decoder.decode(src, decoded, endOfInput);
+            drain(out);
+            if (result.isUnderflow()) {
+                return;
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+        }
+    }
+
+    /**
+     * Translate end of lines from decoded chars and encode them
+     */
+    private void drain(ByteBuf out) throws CharacterCodingException {
+        decoded.flip();
+        translate();
+        decoded.clear();
+        translated.flip();
+        encodeAll(translated, out, false);
+        translated.compact();
+    }
+
+    private void translate() {
+        if (type == TransferType.EBCDIC) {
+            if (toNetwork) {
+                localToNel();
+            } else {
+                nelToLocal();
+            }
+        } else if (LOCAL_CRLF) {
+            translated.put(decoded);
+        } else if (toNetwork) {
+            lfToCrlf();
+        } else {
+            crlfToLf();
+        }
+    }
+
+    private void lfToCrlf() {
+        char[] array = decoded.array();
+        int end = decoded.arrayOffset() + decoded.limit();
+        for (int i = decoded.arrayOffset() + decoded.position(); i < end; i++) {
+            char c = array[i];
+            if (c == LF && !lastCR) {
+                translated.put(CR);
+            }
+            translated.put(c);
+            lastCR = c == CR;
+        }
+    }
+
+    private void crlfToLf() {
+        char[] array = decoded.array();
+        int end = decoded.arrayOffset() + decoded.limit();
+        for (int i = decoded.arrayOffset() + decoded.position(); i < end; i++) {
+            char c = array[i];
+            if (pendingCR) {
+                pendingCR = false;
+                if (c == LF) {
+                    translated.put(LF);
+                    continue;
+                }
+                translated.put(CR);
+            }
+            if (c == CR) {
+                pendingCR = true;
+            } else {
+                translated.put(c);
+            }
+        }
+    }
+
+    private void localToNel() {
+        char[] array = decoded.array();
+        int end = decoded.arrayOffset() + decoded.limit();
+        for (int i = decoded.arrayOffset() + decoded.position(); i < end; i++) {
+            char c = array[i];
+            if (pendingCR) {
+                pendingCR = false;
+                if (c == LF) {
+                    translated.put(NEL);
+                    continue;
+                }
+                translated.put(CR);
+            }
+            if (c == CR) {
+                pendingCR = true;
+            } else if (c == LF) {
+                translated.put(NEL);
+            } else {
+                translated.put(c);
+            }
+        }
+    }
+
+    private void nelToLocal() {
+        char[] array = decoded.array();
+        int end = decoded.arrayOffset() + decoded.limit();
+        for (int i = decoded.arrayOffset() + decoded.position(); i < end; i++) {
+            char c = array[i];
+            if (c == NEL) {
+                if (LOCAL_CRLF) {
+                    translated.put(CR);
+                }
+                translated.put(LF);
+            } else {
+                translated.put(c);
+            }
+        }
+    }
+
+    private void encodeAll(CharBuffer chars, ByteBuf out, boolean endOfInput)
+            throws CharacterCodingException {
+        for (;;) {
+            if (!out.isWritable()) {
+                out.ensureWritable(estimate(chars.remaining()));
+            }
+            ByteBuffer dst = out.nioBuffer(out.writerIndex(), out.writableBytes());
+            CoderResult result = encoder.encode(chars, dst, endOfInput);
+            out.writerIndex(out.writerIndex() + dst.position());
+            if (result.isUnderflow()) {
+                return;
+            }
+            if (result.isOverflow()) {
+                out.ensureWritable(estimate(chars.remaining()));
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    /**
+     * Flush everything kept and reset the state for a next transfer
+     */
+    private void finish(ByteBuf out) throws CharacterCodingException {
+        ByteBuffer src = ByteBuffer.wrap(pendingBytes, 0, pendingLength);
+        pendingLength = 0;
+        decodeAll(src, out, true);
+        CoderResult result;
+        do {
+            result = decoder.flush(decoded);
+            drain(out);
+        } while (result.isOverflow());
+        if (pendingCR) {
+            translated.put(CR);
+            pendingCR = false;
+        }
+        translated.flip();
+        encodeAll(translated, out, true);
+        translated.clear();
+        for (;;) {
+            if (!out.isWritable()) {
+                out.ensureWritable(16);
+            }
+            ByteBuffer dst = out.nioBuffer(out.writerIndex(), out.writableBytes());
+            result = encoder.flush(dst);
+            out.writerIndex(out.writerIndex() + dst.position());
+            if (!result.isOverflow()) {
+                break;
+            }
+            out.ensureWritable(16);
+        }
+        decoder.reset();
+        encoder.reset();
+        lastCR = false;
+    }
+
+    /**
+     * Find the offset in the file of an offset of the translated stream, by translating the file
+     * from a known pair of offsets (Store with REST without checkpoint at this offset). Blocks
+     * are translated up to the target; when a block goes past it, the translation restarts from
+     * the last clean block boundary with blocks half as large, down to single bytes.
+     * 
+     * @param file
+     * @param type
+     *            ASCII or EBCDIC
+     * @param localStart
+     *            offset in the file of the known pair
+     * @param networkStart
+     *            offset in the translated stream of the known pair
+     * @param networkOffset
+     *            the offset in the translated stream to find
+     * @param maxScan
+     *            maximum number of file bytes translated after the known pair
+     * @return the offset in the file, or -1 if this offset is after the end of the file, within
+     *         the translation of one character or end of line, or too far from the known pair
+     * @throws IOException
+     */
+    public static long findLocalOffset(File file, TransferType type, long localStart,
+            long networkStart, long networkOffset, long maxScan) throws IOException {
+        if (networkOffset == networkStart) {
+            return localStart;
+        }
+        Charset charset = Charset.defaultCharset();
+        byte[] bytes = new byte[SCAN_SIZE];
+        // one buffer for the translation of all the blocks, only its length being needed
+        ByteBuf out = Unpooled.buffer(SCAN_SIZE * 2);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FtpDataCharsetConverter converter = new FtpDataCharsetConverter(type, charset, true);
+            long local = localStart;
+            long network = networkStart;
+            long cleanLocal = localStart;
+            long cleanNetwork = networkStart;
+            int step = SCAN_SIZE;
+            randomAccessFile.seek(localStart);
+            for (;;) {
+                long left = maxScan - (local - localStart);
+                if (left <= 0) {
+                    return -1;
+                }
+                int read = randomAccessFile.read(bytes, 0, (int) Math.min(step, left));
+                if (read <= 0) {
+                    return -1;
+                }
+                long next = network + converter.translatedLength(bytes, read, out);
+                boolean clean = converter.isClean();
+                if (next < networkOffset || (next == networkOffset && (clean || step == 1))) {
+                    local += read;
+                    network = next;
+                    if (clean) {
+                        if (network == networkOffset) {
+                            return local;
+                        }
+                        cleanLocal = local;
+                        cleanNetwork = network;
+                    }
+                    continue;
+                }
+                if (step == 1) {
+                    return -1;
+                }
+                step = Math.max(read / 2, 1);
+                converter = new FtpDataCharsetConverter(type, charset, true);
+                local = cleanLocal;
+                network = cleanNetwork;
+                randomAccessFile.seek(cleanLocal);
+            }
+        } finally {
+            randomAccessFile.close();
+            out.release();
+        }
+    }
+
+    /**
+     * 
+     * @return the number of translated bytes of these bytes
+     */
+    private int translatedLength(byte[] bytes, int length, ByteBuf out)
+            throws CharacterCodingException {
+        out.clear();
+        convert(ByteBuffer.wrap(bytes, 0, length), out, false);
+        return out.readableBytes();
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import org.waarp.common.file.DataBlock;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+
+/**
+ * COMPRESSED mode (RFC 959 3.4.3) framing, used by {@link FtpDataModeCodec}:<br>
+ * - 0nnnnnnn followed by n data bytes (n from 1 to 127)<br>
+ * - 10nnnnnn followed by one byte replicated n times<br>
+ * - 11nnnnnn for n filler bytes (space for ASCII and EBCDIC, zero otherwise)<br>
+ * - 00000000 followed by a descriptor as in BLOCK mode (EOR, EOF, restart marker)<br>
+ * <br>
+ * The encoder scans the backing array of each block for runs and copies literal strings at
+ * once. The decoder keeps incomplete sequences in the cumulation buffer of the codec.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class FtpDataCompressedMode {
+    private static final int MAX_LITERAL = 127;
+
+    private static final int MAX_REPEAT = 63;
+
+    /**
+     * Minimum length of a run to be replicated instead of sent as literal
+     */
+    private static final int MIN_REPLICATED = 3;
+
+    /**
+     * Minimum length of a run of filler bytes to be sent as filler
+     */
+    private static final int MIN_FILLER = 2;
+
+    private static final int DESCRIPTOR_EOR = 128;
+
+    private static final int DESCRIPTOR_EOF = 64;
+
+    private static final int DESCRIPTOR_RESTART = 16;
+
+    /**
+     * Filler byte according to the type
+     */
+    private volatile byte filler = ' ';
+
+    /**
+     * Bytes to replicate (decoder)
+     */
+    private final byte[] repeat = new byte[MAX_REPEAT];
+
+    /**
+     * The next string is a restart marker to ignore (decoder)
+     */
+    private boolean skipMarker = false;
+
+    /**
+     * True once the EOF was received (decoder)
+     */
+    private boolean eof = false;
+
+    /**
+     * 
+     * @param type
+     *            the representation type, giving the filler byte
+     */
+    void setType(TransferType type) {
+        if (type == TransferType.ASCII) {
+            filler = ' ';
+        } else if (type == TransferType.EBCDIC) {
+            filler = 0x40;
+        } else {
+            filler = 0;
+        }
+    }
+
+    /**
+     * Reset the decoder for a new transfer on the same data connection
+     */
+    void reset() {
+        eof = false;
+        skipMarker = false;
+    }
+
+    /**
+     * Decode as many complete sequences as available
+     * 
+     * @param alloc
+     * @param buf
+     * @param out
+     *            receives the DataBlocks, one per record if EOR are received
+     */
+    void decode(ByteBufAllocator alloc, ByteBuf buf, List<Object> out) {
+        if (eof) {
+            buf.skipBytes(buf.readableBytes());
+            return;
+        }
+        ByteBuf data = alloc.buffer(buf.readableBytes() * 2);
+        while (buf.isReadable()) {
+            int start = buf.readerIndex();
+            int header = buf.getUnsignedByte(start);
+            if (header == 0) {
+                // escape sequence
+                if (buf.readableBytes() < 2) {
+                    break;
+                }
+                int descriptor = buf.getUnsignedByte(start + 1);
+                buf.skipBytes(2);
+                if ((descriptor & DESCRIPTOR_RESTART) != 0) {
+                    skipMarker = true;
+                }
+                if ((descriptor & (DESCRIPTOR_EOR | DESCRIPTOR_EOF)) != 0) {
+                    DataBlock block = new DataBlock();
+                    block.setBlock(data);
+                    block.setEOR((descriptor & DESCRIPTOR_EOR) != 0);
+                    block.setEOF((descriptor & DESCRIPTOR_EOF) != 0);
+                    out.add(block);
+                    if (block.isEOF()) {
+                        eof = true;
+                        buf.skipBytes(buf.readableBytes());
+                        return;
+                    }
+                    data = alloc.buffer(buf.readableBytes() * 2);
+                }
+            } else if (header < 0x80) {
+                // regular data
+                if (buf.readableBytes() < header + 1) {
+                    break;
+                }
+                buf.skipBytes(1);
+                if (skipMarker) {
+                    skipMarker = false;
+                    buf.skipBytes(header);
+                } else {
+                    data.writeBytes(buf, header);
+                }
+            } else if (header < 0xC0) {
+                // replicated byte
+                if (buf.readableBytes() < 2) {
+                    break;
+                }
+                byte value = buf.getByte(start + 1);
+                buf.skipBytes(2);
+                fill(data, value, header & 0x3F);
+            } else {
+                // filler string
+                buf.skipBytes(1);
+                fill(data, filler, header & 0x3F);
+            }
+        }
+        if (data.isReadable()) {
+            DataBlock block = new DataBlock();
+            block.setBlock(data);
+            out.add(block);
+        } else {
+            data.release();
+        }
+    }
+
+    private void fill(ByteBuf data, byte value, int length) {
+        if (value == 0) {
+            data.writeZero(length);
+        } else {
+            Arrays.fill(repeat, 0, length, value);
+            data.writeBytes(repeat, 0, length);
+        }
+    }
+
+    /**
+     * Encode the block, followed by its descriptor if any
+     * 
+     * @param msg
+     * @param out
+     */
+    void encode(DataBlock msg, ByteBuf out) {
+        if (msg.isRESTART()) {
+            byte[] marker = msg.getByteMarkers();
+            out.writeByte(0).writeByte(DESCRIPTOR_RESTART);
+            out.writeByte(marker.length).writeBytes(marker);
+            return;
+        }
+        ByteBuf buffer = msg.getBlock();
+        if (buffer != null && buffer.isReadable()) {
+            int length = buffer.readableBytes();
+            out.ensureWritable(length + length / MAX_LITERAL + 3);
+            if (buffer.hasArray()) {
+                int offset = buffer.arrayOffset();
+                encode(buffer.array(), offset + buffer.readerIndex(),
+                        offset + buffer.writerIndex(), out);
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.getBytes(buffer.readerIndex(), bytes);
+                encode(bytes, 0, length, out);
+            }
+        }
+        int descriptor = (msg.isEOR() ? DESCRIPTOR_EOR : 0) | (msg.isEOF() ? DESCRIPTOR_EOF : 0);
+        if (descriptor != 0) {
+            out.writeByte(0).writeByte(descriptor);
+        }
+    }
+
+    private void encode(byte[] array, int start, int end, ByteBuf out) {
+        int i = start;
+        while (i < end) {
+            byte value = array[i];
+            int run = runLength(array, i, end);
+            if (value == filler && run >= MIN_FILLER) {
+                out.writeByte(0xC0 | run);
+                i += run;
+            } else if (run >= MIN_REPLICATED) {
+                out.writeByte(0x80 | run).writeByte(value);
+                i += run;
+            } else {
+                // literal string up to the next run worth compressing
+                int j = i + run;
+                int limit = Math.min(end, i + MAX_LITERAL);
+                while (j < limit) {
+                    int next = runLength(array, j, end);
+                    if (next >= MIN_REPLICATED || (array[j] == filler && next >= MIN_FILLER)) {
+                        break;
+                    }
+                    j += next;
+                }
+                if (j > limit) {
+                    j = limit;
+                }
+                out.writeByte(j - i).writeBytes(array, i, j - i);
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the number of identical bytes from start, at most MAX_REPEAT
+     */
+    private static int runLength(byte[] array, int start, int end) {
+        byte value = array[start];
+        int limit = Math.min(end, start + MAX_REPEAT);
+        int i = start + 1;
+        while (i < limit && array[i] == value) {
+            i++;
+        }
+        return i - start;
+    }
+}
@@ -65,12 +65,6 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
      */
     public static final String HANDLER = "handler";
 
-    protected static final FtpDataTypeCodec ftpDataTypeCodec = new FtpDataTypeCodec(
-            TransferType.ASCII, TransferSubType.NONPRINT);
-
-    protected static final FtpDataStructureCodec ftpDataStructureCodec = new FtpDataStructureCodec(
-            TransferStructure.FILE);
-
     /**
      * Business Handler Class
      */
@@ -101,6 +95,49 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
         isActive = active;
     }
 
+    /**
+     * 
+     * @return a new Type Codec with the default settings, one per channel since its settings are
+     *         fixed
+     */
+    protected static FtpDataTypeCodec newTypeCodec() {
+        return new FtpDataTypeCodec(TransferType.ASCII, TransferSubType.NONPRINT,
+                FtpEbcdicCodePage.DEFAULT);
+    }
+
+    /**
+     * 
+     * @return a new Structure Codec with the default settings
+     */
+    protected static FtpDataStructureCodec newStructureCodec() {
+        return new FtpDataStructureCodec(TransferStructure.FILE);
+    }
+
+    /**
+     * Replace the Type and Structure codecs of the pipeline if their settings differ
+     * 
+     * @param pipeline
+     * @param type
+     * @param subType
+     * @param codePage
+     * @param structure
+     */
+    static void updateCodecs(ChannelPipeline pipeline, TransferType type,
+            TransferSubType subType, FtpEbcdicCodePage codePage, TransferStructure structure) {
+        FtpDataTypeCodec typeCodec = (FtpDataTypeCodec) pipeline.get(CODEC_TYPE);
+        if (typeCodec.getType() != type || typeCodec.getSubType() != subType ||
+                typeCodec.getCodePage() != codePage) {
+            pipeline.replace(typeCodec, CODEC_TYPE,
+                    new FtpDataTypeCodec(type, subType, codePage));
+        }
+        FtpDataStructureCodec structureCodec = (FtpDataStructureCodec) pipeline
+                .get(CODEC_STRUCTURE);
+        if (structureCodec.getStructure() != structure) {
+            pipeline.replace(structureCodec, CODEC_STRUCTURE,
+                    new FtpDataStructureCodec(structure));
+        }
+    }
+
     /**
      * Create the pipeline with Handler, ObjectDecoder, ObjectEncoder.
      * 
@@ -121,8 +158,8 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
         if (limitChannel != null) {
             pipeline.addLast(CODEC_LIMIT + "CHANNEL", limitChannel);
         }
-        pipeline.addLast(CODEC_TYPE, ftpDataTypeCodec);
-        pipeline.addLast(CODEC_STRUCTURE, ftpDataStructureCodec);
+        pipeline.addLast(CODEC_TYPE, newTypeCodec());
+        pipeline.addLast(CODEC_STRUCTURE, newStructureCodec());
         // and then business logic. New one on every connection
         DataBusinessHandler newbusiness = dataBusinessHandler.newInstance();
         DataNetworkHandler newNetworkHandler = new DataNetworkHandler(
@@ -17,27 +17,36 @@
  */
 package org.waarp.ftp.core.data.handler;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.ByteToMessageCodec;
 
 import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.common.file.DataBlock;
-import org.waarp.common.future.WaarpFuture;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
 import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.data.handler.FtpSeekAheadData.SeekAheadNoBackArrayException;
+import org.waarp.ftp.core.data.FtpRestartMarker;
 
 /**
  * First CODEC :<br>
  * - encode : takes a {@link DataBlock} and transforms it to a ByteBuf<br>
  * - decode : takes a ByteBuf and transforms it to a {@link DataBlock}<br>
- * STREAM and BLOCK mode are implemented. COMPRESSED mode is not implemented.
+ * STREAM, BLOCK, COMPRESSED and ZLIB (MODE Z extension) modes are implemented.<br>
+ * In BLOCK mode, restart markers are exchanged as {@link FtpRestartMarker}.
  * 
  * @author Frederic Bregier
  * 
@@ -99,9 +108,39 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
     private DataBlock dataBlock = null;
 
     /**
-     * Last byte for STREAM+RECORD
+     * True if the last byte received for STREAM+RECORD was an escape byte
      */
-    private int lastbyte = 0;
+    private boolean pendingEscape = false;
+
+    /**
+     * COMPRESSED mode framing
+     */
+    private final FtpDataCompressedMode compressedMode = new FtpDataCompressedMode();
+
+    /**
+     * Compression level for ZLIB mode
+     */
+    private volatile int zlibLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Worker pool to compress ZLIB chunks in parallel, null for sequential
+     */
+    private volatile ExecutorService zlibExecutor = null;
+
+    /**
+     * Inflater for ZLIB mode, one per transfer since the stream ends with the connection
+     */
+    private Inflater inflater = null;
+
+    /**
+     * Encoder for ZLIB mode (event loop only)
+     */
+    private FtpDataZlibEncoder zlibEncoder = null;
+
+    /**
+     * Maximum number of bytes received before the codec is ready before the reading is stopped
+     */
+    private static final int MAX_EARLY_BYTES = 1024 * 1024;
 
     /**
      * Is the underlying DataNetworkHandler ready to receive block
@@ -109,10 +148,37 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
     private volatile boolean isReady = false;
 
     /**
-     * Blocking step between DataNetworkHandler and this Codec in order to wait that the
-     * DataNetworkHandler is ready
+     * Context of this codec, to replay early data from the event loop once ready
+     */
+    private volatile ChannelHandlerContext context = null;
+
+    /**
+     * True if some bytes were received before being ready (event loop only)
+     */
+    private boolean hasEarlyData = false;
+
+    /**
+     * True if the timeout on readiness is scheduled (event loop only)
+     */
+    private boolean readyTimeoutScheduled = false;
+
+    /**
+     * Writes received before being ready, in order (event loop only)
      */
-    private final WaarpFuture codecLocked = new WaarpFuture();
+    private List<PendingWrite> pendingWrites = null;
+
+    /**
+     * One write delayed until the codec is ready
+     */
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
 
     /**
      * @param mode
@@ -126,128 +192,254 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
 
     /**
      * Inform the Codec that DataNetworkHandler is ready (called from DataNetworkHandler after
-     * setCorrectCodec).
+     * setCorrectCodec).<br>
+     * Bytes and writes received before are replayed from the event loop: the event loop is never
+     * blocked waiting for this call.
      * 
      */
     public void setCodecReady() {
-        codecLocked.setSuccess();
+        if (isReady) {
+            return;
+        }
+        isReady = true;
+        final ChannelHandlerContext ctx = context;
+        if (ctx != null) {
+            ctx.executor().execute(new Runnable() {
+                public void run() {
+                    replayEarly(ctx);
+                }
+            });
+        }
     }
 
-    protected DataBlock decodeRecordStandard(ByteBuf buf, int length) {
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
-        if (lastbyte == 0xFF) {
-            int nextbyte = buf.readByte();
-            if (nextbyte == 0xFF) {
-                newbuf.writeByte((byte) (lastbyte & 0xFF));
-            } else {
-                if (nextbyte == 1) {
-                    dataBlock.setEOR(true);
-                } else if (nextbyte == 2) {
-                    dataBlock.setEOF(true);
-                } else if (nextbyte == 3) {
-                    dataBlock.setEOR(true);
-                    dataBlock.setEOF(true);
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        context = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    /**
+     * Replay writes and decoding of bytes received before being ready, from the event loop
+     * 
+     * @param ctx
+     */
+    private void replayEarly(ChannelHandlerContext ctx) {
+        List<PendingWrite> writes = pendingWrites;
+        pendingWrites = null;
+        if (writes != null) {
+            for (PendingWrite pendingWrite : writes) {
+                try {
+                    write(ctx, pendingWrite.msg, pendingWrite.promise);
+                } catch (Exception e) {
+                    pendingWrite.promise.tryFailure(e);
                 }
-                lastbyte = 0;
             }
+            ctx.flush();
         }
-        try {
-            while (true) {
-                lastbyte = buf.readByte();
-                if (lastbyte == 0xFF) {
-                    int nextbyte = buf.readByte();
-                    if (nextbyte == 0xFF) {
-                        newbuf.writeByte((byte) (lastbyte & 0xFF));
-                    } else {
-                        if (nextbyte == 1) {
-                            dataBlock.setEOR(true);
-                        } else if (nextbyte == 2) {
-                            dataBlock.setEOF(true);
-                        } else if (nextbyte == 3) {
-                            dataBlock.setEOR(true);
-                            dataBlock.setEOF(true);
-                        }
-                    }
-                } else {
-                    newbuf.writeByte((byte) (lastbyte & 0xFF));
-                }
-                lastbyte = 0;
+        if (hasEarlyData) {
+            hasEarlyData = false;
+            try {
+                // decode what was kept in the cumulation buffer
+                channelRead(ctx, Unpooled.EMPTY_BUFFER);
+            } catch (Exception e) {
+                ctx.fireExceptionCaught(e);
             }
-        } catch (IndexOutOfBoundsException e) {
-            // End of read
         }
-        dataBlock.setBlock(newbuf);
-        return dataBlock;
     }
 
-    protected DataBlock decodeRecord(ByteBuf buf, int length) {
-        FtpSeekAheadData sad = null;
-        try {
-            sad = new FtpSeekAheadData(buf);
-        } catch (SeekAheadNoBackArrayException e1) {
-            return decodeRecordStandard(buf, length);
+    /**
+     * Fail the codec if it is not ready in time, without blocking the event loop meanwhile
+     * 
+     * @param ctx
+     */
+    private void scheduleReadyTimeout(final ChannelHandlerContext ctx) {
+        if (readyTimeoutScheduled) {
+            return;
         }
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
-        if (lastbyte == 0xFF) {
-            int nextbyte = sad.bytes[sad.pos++];
-            if (nextbyte == 0xFF) {
-                newbuf.writeByte((byte) (lastbyte & 0xFF));
-            } else {
-                if (nextbyte == 1) {
-                    dataBlock.setEOR(true);
-                } else if (nextbyte == 2) {
-                    dataBlock.setEOF(true);
-                } else if (nextbyte == 3) {
-                    dataBlock.setEOR(true);
-                    dataBlock.setEOF(true);
+        readyTimeoutScheduled = true;
+        ctx.executor().schedule(new Runnable() {
+            public void run() {
+                if (!isReady) {
+                    InvalidArgumentException exception =
+                            new InvalidArgumentException("Codec not unlocked while should be");
+                    failPendingWrites(exception);
+                    ctx.fireExceptionCaught(exception);
                 }
-                lastbyte = 0;
             }
+        }, FtpConfiguration.getDATATIMEOUTCON(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fail the writes kept before being ready
+     * 
+     * @param cause
+     */
+    private void failPendingWrites(Throwable cause) {
+        List<PendingWrite> writes = pendingWrites;
+        pendingWrites = null;
+        if (writes != null) {
+            for (PendingWrite pendingWrite : writes) {
+                if (pendingWrite.msg instanceof DataBlock) {
+                    ((DataBlock) pendingWrite.msg).clear();
+                }
+                pendingWrite.promise.tryFailure(cause);
+            }
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failPendingWrites(new InvalidArgumentException("Data channel closed"));
+        try {
+            super.channelInactive(ctx);
+        } finally {
+            if (zlibEncoder != null) {
+                zlibEncoder.release();
+                zlibEncoder = null;
+            }
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+
+    /**
+     * Decode ZLIB data: inflate directly into a heap buffer
+     * 
+     * @param ctx
+     * @param buf
+     * @param out
+     * @throws InvalidArgumentException
+     */
+    protected void decodeZlib(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out)
+            throws InvalidArgumentException {
+        int length = buf.readableBytes();
+        if (inflater == null) {
+            inflater = new Inflater();
         }
+        if (inflater.finished()) {
+            // nothing expected after the end of the zlib stream
+            buf.skipBytes(length);
+            return;
+        }
+        if (buf.hasArray()) {
+            inflater.setInput(buf.array(), buf.arrayOffset() + buf.readerIndex(), length);
+        } else {
+            byte[] input = new byte[length];
+            buf.getBytes(buf.readerIndex(), input);
+            inflater.setInput(input);
+        }
+        ByteBuf newbuf = ctx.alloc().heapBuffer(length * 4);
         try {
-            while (sad.pos < sad.limit) {
-                lastbyte = sad.bytes[sad.pos++];
-                if (lastbyte == 0xFF) {
-                    int nextbyte = sad.bytes[sad.pos++];
-                    if (nextbyte == 0xFF) {
-                        newbuf.writeByte((byte) (lastbyte & 0xFF));
-                    } else {
-                        if (nextbyte == 1) {
-                            dataBlock.setEOR(true);
-                        } else if (nextbyte == 2) {
-                            dataBlock.setEOF(true);
-                        } else if (nextbyte == 3) {
-                            dataBlock.setEOR(true);
-                            dataBlock.setEOF(true);
-                        }
+            while (!inflater.finished()) {
+                if (!newbuf.isWritable()) {
+                    newbuf.ensureWritable(newbuf.capacity());
+                }
+                int size = inflater.inflate(newbuf.array(),
+                        newbuf.arrayOffset() + newbuf.writerIndex(), newbuf.writableBytes());
+                newbuf.writerIndex(newbuf.writerIndex() + size);
+                if (size == 0 && newbuf.isWritable()) {
+                    if (inflater.needsDictionary()) {
+                        throw new InvalidArgumentException("MODE Z stream with dictionary");
+                    }
+                    if (inflater.needsInput()) {
+                        break;
                     }
-                } else {
-                    newbuf.writeByte((byte) (lastbyte & 0xFF));
                 }
-                lastbyte = 0;
             }
-        } catch (IndexOutOfBoundsException e) {
-            // End of read
+        } catch (DataFormatException e) {
+            newbuf.release();
+            throw new InvalidArgumentException("Incorrect MODE Z data: " + e.getMessage());
+        } catch (InvalidArgumentException e) {
+            newbuf.release();
+            throw e;
+        }
+        buf.skipBytes(length);
+        if (newbuf.isReadable()) {
+            dataBlock = new DataBlock();
+            dataBlock.setBlock(newbuf);
+            out.add(dataBlock);
+        } else {
+            newbuf.release();
+        }
+    }
+
+    /**
+     * Decode STREAM+RECORD data: runs between escape bytes are copied at once
+     * 
+     * @param buf
+     * @param length
+     * @return the DataBlock with the unescaped data and EOR/EOF flags
+     */
+    protected DataBlock decodeRecord(ByteBuf buf, int length) {
+        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
+        if (pendingEscape && buf.isReadable()) {
+            // escape byte was the last one of the previous buffer
+            pendingEscape = false;
+            decodeEscape(buf.readUnsignedByte(), newbuf);
+        }
+        while (buf.isReadable()) {
+            int run = buf.bytesBefore((byte) 0xFF);
+            if (run < 0) {
+                newbuf.writeBytes(buf);
+                break;
+            }
+            newbuf.writeBytes(buf, run);
+            buf.skipBytes(1);
+            if (!buf.isReadable()) {
+                pendingEscape = true;
+                break;
+            }
+            decodeEscape(buf.readUnsignedByte(), newbuf);
         }
-        sad.setReadPosition(0);
         dataBlock.setBlock(newbuf);
         return dataBlock;
     }
 
+    /**
+     * 
+     * @param nextbyte
+     *            the byte following an escape byte
+     * @param newbuf
+     */
+    private void decodeEscape(int nextbyte, ByteBuf newbuf) {
+        if (nextbyte == 0xFF) {
+            newbuf.writeByte(0xFF);
+        } else if (nextbyte == 1) {
+            dataBlock.setEOR(true);
+        } else if (nextbyte == 2) {
+            dataBlock.setEOF(true);
+        } else if (nextbyte == 3) {
+            dataBlock.setEOR(true);
+            dataBlock.setEOF(true);
+        }
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
         // First test if the connection is fully ready (block might be
         // transfered
-        // by client before connection is ready)
+        // by client before connection is ready): if not, bytes are kept in the
+        // cumulation buffer and decoded once ready
         if (!isReady) {
-            if (!codecLocked.await(FtpConfiguration.getDATATIMEOUTCON())) {
-                throw new InvalidArgumentException("Codec not unlocked while should be");
+            hasEarlyData = true;
+            scheduleReadyTimeout(ctx);
+            if (buf.readableBytes() > MAX_EARLY_BYTES) {
+                ctx.channel().config().setAutoRead(false);
             }
-            isReady = true;
+            return;
         }
         if (buf.readableBytes() == 0) {
             return;
         }
+        if (mode == TransferMode.ZLIB) {
+            decodeZlib(ctx, buf, out);
+            return;
+        } else if (mode == TransferMode.COMPRESSED) {
+            compressedMode.decode(ctx.alloc(), buf, out);
+            return;
+        }
         // If STREAM Mode, no task to do, just next filter
         if (mode == TransferMode.STREAM) {
             dataBlock = new DataBlock();
@@ -285,7 +477,8 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
                 dataBlock = new DataBlock();
             }
             // Read the descriptor
-            dataBlock.setDescriptor(buf.readByte());
+            byte descriptor = buf.readByte();
+            dataBlock.setDescriptor(descriptor);
 
             // Read the length field.
             byte upper = buf.readByte();
@@ -304,9 +497,15 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
 
                 return;
             }
+            if ((descriptor & FtpRestartMarker.DESCRIPTOR) != 0) {
+                // Restart marker from the sender: not data
+                out.add(FtpRestartMarker.fromBlock(buf.readSlice(dataBlock.getByteCount())));
+                dataBlock = null;
+                return;
+            }
             if (dataBlock.getByteCount() > 0) {
-                // There's enough bytes in the buffer. Read it.
-                dataBlock.setBlock(buf.readBytes(dataBlock.getByteCount()));
+                // There's enough bytes in the buffer. Take it without copy.
+                dataBlock.setBlock(buf.readSlice(dataBlock.getByteCount()).retain());
             }
             DataBlock returnDataBlock = dataBlock;
             // Free the datablock for next frame
@@ -319,54 +518,24 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         throw new InvalidArgumentException("Mode unimplemented: " + mode.name());
     }
 
-    protected ByteBuf encodeRecordStandard(DataBlock msg, ByteBuf buffer) {
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount());
-        int newbyte = 0;
-        try {
-            while (true) {
-                newbyte = buffer.readByte();
-                if (newbyte == 0xFF) {
-                    newbuf.writeByte((byte) (newbyte & 0xFF));
-                }
-                newbuf.writeByte((byte) (newbyte & 0xFF));
-            }
-        } catch (IndexOutOfBoundsException e) {
-            // end of read
-        }
-        int value = 0;
-        if (msg.isEOF()) {
-            value += 2;
-        }
-        if (msg.isEOR()) {
-            value += 1;
-        }
-        if (value > 0) {
-            newbuf.writeByte((byte) 0xFF);
-            newbuf.writeByte((byte) (value & 0xFF));
-        }
-        msg.clear();
-        return newbuf;
-    }
-
+    /**
+     * Encode STREAM+RECORD data: runs between bytes to escape are copied at once
+     * 
+     * @param msg
+     * @param buffer
+     * @return the escaped data with EOR/EOF marker
+     */
     protected ByteBuf encodeRecord(DataBlock msg, ByteBuf buffer) {
-        FtpSeekAheadData sad = null;
-        try {
-            sad = new FtpSeekAheadData(buffer);
-        } catch (SeekAheadNoBackArrayException e1) {
-            return encodeRecordStandard(msg, buffer);
-        }
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount());
-        int newbyte = 0;
-        try {
-            while (sad.pos < sad.limit) {
-                newbyte = sad.bytes[sad.pos++];
-                if (newbyte == 0xFF) {
-                    newbuf.writeByte((byte) (newbyte & 0xFF));
-                }
-                newbuf.writeByte((byte) (newbyte & 0xFF));
+        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount() + 2);
+        while (buffer.isReadable()) {
+            int run = buffer.bytesBefore((byte) 0xFF);
+            if (run < 0) {
+                newbuf.writeBytes(buffer);
+                break;
             }
-        } catch (IndexOutOfBoundsException e) {
-            // end of read
+            // copy the run including the 0xFF then double it
+            newbuf.writeBytes(buffer, run + 1);
+            newbuf.writeByte(0xFF);
         }
         int value = 0;
         if (msg.isEOF()) {
@@ -376,16 +545,16 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
             value += 1;
         }
         if (value > 0) {
-            newbuf.writeByte((byte) 0xFF);
-            newbuf.writeByte((byte) (value & 0xFF));
+            newbuf.writeByte(0xFF);
+            newbuf.writeByte(value);
         }
         msg.clear();
-        sad.setReadPosition(0);
         return newbuf;
     }
 
     /**
-     * Encode a DataBlock in the correct format for Mode
+     * Encode a DataBlock in the correct format for STREAM Mode (BLOCK Mode is framed by
+     * encodeBlockZeroCopy from write)
      * 
      * @param msg
      * @return the ByteBuf or null when the last block is already done
@@ -404,65 +573,6 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
             }
             msg.clear();
             return buffer;
-        } else if (mode == TransferMode.BLOCK) {
-            int length = msg.getByteCount();
-            ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length > 0xFFFF ? 0xFFFF + 3 : length + 3);
-            byte[] header = new byte[3];
-            // Is there any data left
-            if (length == 0) {
-                // It could be an empty block for EOR or EOF
-                if (msg.isEOF() || msg.isEOR()) {
-                    header[0] = msg.getDescriptor();
-                    header[1] = 0;
-                    header[2] = 0;
-                    newbuf.writeBytes(header);
-                    // Next call will be the last one
-                    msg.clear();
-                    // return the last block
-                    return newbuf;
-                }
-                // This was the very last call
-                msg.clear();
-                // return the end of encode
-                return null;
-            }
-            // Is this a Restart so only Markers
-            if (msg.isRESTART()) {
-                header[0] = msg.getDescriptor();
-                header[1] = msg.getByteCountUpper();
-                header[2] = msg.getByteCountLower();
-                newbuf.writeBytes(header);
-                newbuf.writeBytes(msg.getByteMarkers());
-                // Next call will be the last one
-                msg.clear();
-                // return the last block
-                return newbuf;
-            }
-            // Work on sub block, ignoring descriptor since it is not the last
-            // one
-            if (length > 0xFFFF) {
-                header[0] = 0;
-                header[1] = (byte) 0xFF;
-                header[2] = (byte) 0xFF;
-                newbuf.writeBytes(header);
-                // Now take the first 0xFFFF bytes from buffer
-                newbuf.writeBytes(msg.getBlock(), 0xFFFF);
-                length -= 0xFFFF;
-                msg.setByteCount(length);
-                // return the sub block
-                return newbuf;
-            }
-            // Last final block, using the descriptor
-            header[0] = msg.getDescriptor();
-            header[1] = msg.getByteCountUpper();
-            header[2] = msg.getByteCountLower();
-            newbuf.writeBytes(header);
-            // real data
-            newbuf.writeBytes(buffer, length);
-            // Next call will be the last one
-            msg.clear();
-            // return the last block
-            return newbuf;
         }
         // Mode unimplemented
         throw new InvalidArgumentException("Mode unimplemented: " + mode.name());
@@ -475,6 +585,25 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         return mode;
     }
 
+    /**
+     * @param type
+     *            the representation type, used for the filler of COMPRESSED mode
+     */
+    public void setType(TransferType type) {
+        compressedMode.setType(type);
+    }
+
+    /**
+     * @param level
+     *            the compression level for ZLIB mode
+     * @param executor
+     *            the worker pool to compress ZLIB chunks in parallel, null for sequential
+     */
+    public void setZlib(int level, ExecutorService executor) {
+        this.zlibLevel = level;
+        this.zlibExecutor = executor;
+    }
+
     /**
      * @param mode
      *            the mode to set
@@ -483,6 +612,15 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         this.mode = mode;
     }
 
+    /**
+     * Reset the decoding state for a new transfer, since the data connection may stay open
+     * between transfers (BLOCK and COMPRESSED modes). Called before the reads of the transfer
+     * resume.
+     */
+    public void resetTransfer() {
+        compressedMode.reset();
+    }
+
     /**
      * @return the structure
      */
@@ -498,16 +636,120 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         this.structure = structure;
     }
 
+    /**
+     * Encode a DataBlock in BLOCK mode without copying the data: small headers are composed with
+     * retained slices of the data
+     * 
+     * @param alloc
+     * @param msg
+     * @return the framed ByteBuf or null if there is nothing to send
+     */
+    protected ByteBuf encodeBlockZeroCopy(ByteBufAllocator alloc, DataBlock msg) {
+        // Is this a Restart so only Markers
+        if (msg.isRESTART()) {
+            ByteBuf frame = Unpooled.wrappedBuffer(
+                    new byte[] { msg.getDescriptor(), msg.getByteCountUpper(),
+                            msg.getByteCountLower() }, msg.getByteMarkers());
+            msg.clear();
+            return frame;
+        }
+        ByteBuf buffer = msg.getBlock();
+        int length = msg.getByteCount();
+        int index = buffer == null ? 0 : buffer.readerIndex();
+        CompositeByteBuf frame = alloc.compositeBuffer((length / 0xFFFF + 1) * 2);
+        // Sub blocks, ignoring descriptor since they are not the last one
+        while (length > 0xFFFF) {
+            addComponent(frame, Unpooled.wrappedBuffer(new byte[] { 0, (byte) 0xFF, (byte) 0xFF }));
+            addComponent(frame, buffer.slice(index, 0xFFFF).retain());
+            index += 0xFFFF;
+            length -= 0xFFFF;
+        }
+        // Last final block, using the descriptor (could be empty for EOR or EOF)
+        if (length > 0 || msg.isEOF() || msg.isEOR()) {
+            addComponent(frame, Unpooled.wrappedBuffer(new byte[] { msg.getDescriptor(),
+                    (byte) ((length >> 8) & 0xFF), (byte) (length & 0xFF) }));
+            if (length > 0) {
+                addComponent(frame, buffer.slice(index, length).retain());
+            }
+        }
+        msg.clear();
+        if (frame.numComponents() == 0) {
+            frame.release();
+            return null;
+        }
+        return frame;
+    }
+
+    private static void addComponent(CompositeByteBuf frame, ByteBuf component) {
+        frame.addComponent(component);
+        frame.writerIndex(frame.writerIndex() + component.readableBytes());
+    }
+
+    /**
+     * BLOCK mode and STREAM mode without RECORD structure are written without copying the data
+     * into an intermediate buffer. Restart markers are framed in BLOCK mode and dropped in other
+     * modes.
+     */
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception {
+        if ((msg instanceof DataBlock || msg instanceof FtpRestartMarker) &&
+                (!isReady || pendingWrites != null)) {
+            // keep the order with the writes received before being ready
+            if (pendingWrites == null) {
+                pendingWrites = new ArrayList<PendingWrite>();
+            }
+            pendingWrites.add(new PendingWrite(msg, promise));
+            scheduleReadyTimeout(ctx);
+            return;
+        }
+        if (msg instanceof FtpRestartMarker) {
+            if (mode == TransferMode.BLOCK) {
+                ctx.write(((FtpRestartMarker) msg).toBlock(), promise);
+            } else {
+                // restart markers only exist in BLOCK mode
+                promise.trySuccess();
+            }
+            return;
+        }
+        if (msg instanceof DataBlock && mode == TransferMode.ZLIB) {
+            if (zlibEncoder == null) {
+                zlibEncoder = new FtpDataZlibEncoder(zlibLevel, zlibExecutor);
+            }
+            zlibEncoder.write(ctx, (DataBlock) msg, promise);
+            return;
+        }
+        if (msg instanceof DataBlock &&
+                (mode == TransferMode.BLOCK ||
+                (mode == TransferMode.STREAM && structure != TransferStructure.RECORD))) {
+            DataBlock dataBlock = (DataBlock) msg;
+            ByteBuf frame = null;
+            if (!dataBlock.isCleared()) {
+                if (mode == TransferMode.BLOCK) {
+                    frame = encodeBlockZeroCopy(ctx.alloc(), dataBlock);
+                } else {
+                    frame = dataBlock.getBlock();
+                    if (frame != null) {
+                        frame.retain();
+                    }
+                    dataBlock.clear();
+                }
+            }
+            ctx.write(frame == null ? Unpooled.EMPTY_BUFFER : frame, promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
     @Override
     protected void encode(ChannelHandlerContext ctx, DataBlock msg, ByteBuf out) throws Exception {
-        // First test if the connection is fully ready (block might be
-        // transfered
-        // by client before connection is ready)
-        if (!isReady) {
-            if (!codecLocked.await(FtpConfiguration.getDATATIMEOUTCON())) {
-                throw new InvalidArgumentException("Codec not unlocked while should be");
+        if (mode == TransferMode.COMPRESSED) {
+            // encoded directly into the output buffer
+            if (!msg.isCleared()) {
+                compressedMode.encode(msg, out);
+                msg.clear();
             }
-            isReady = true;
+            return;
         }
         ByteBuf next = encode(msg);
         // Could be splitten in several block
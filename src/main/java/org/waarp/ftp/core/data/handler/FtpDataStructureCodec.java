@@ -19,7 +19,6 @@ package org.waarp.ftp.core.data.handler;
 
 import java.util.List;
 
-import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
 
@@ -38,7 +37,6 @@ import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
  * @author Frederic Bregier
  * 
  */
-@Sharable
 class FtpDataStructureCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     /*
      * 3.1.2. DATA STRUCTURES In addition to different representation types, FTP allows the
@@ -99,7 +97,7 @@ class FtpDataStructureCodec extends MessageToMessageCodec<DataBlock, DataBlock>
     /**
      * Structure of transfer
      */
-    private TransferStructure structure = null;
+    private final TransferStructure structure;
 
     /**
      * @param structure
@@ -116,14 +114,6 @@ class FtpDataStructureCodec extends MessageToMessageCodec<DataBlock, DataBlock>
         return structure;
     }
 
-    /**
-     * @param structure
-     *            the structure to set
-     */
-    public void setStructure(TransferStructure structure) {
-        this.structure = structure;
-    }
-
     @Override
     protected void encode(ChannelHandlerContext ctx, DataBlock msg, List<Object> out) throws Exception {
         if (structure == TransferStructure.FILE) {
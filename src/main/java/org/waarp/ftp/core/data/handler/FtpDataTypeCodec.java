@@ -22,7 +22,6 @@ import java.util.List;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
 
@@ -30,17 +29,23 @@ import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.common.file.DataBlock;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferSubType;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+import org.waarp.ftp.core.file.FtpOffsetIndex;
 
 /**
  * Second CODEC :<br>
  * - encode/decode : takes a {@link DataBlock} and transforms it to a new {@link DataBlock} according
  * to the types<br>
- * Force ASCII, EBCDIC or IMAGE (with NON PRINT). LOCAL and other subtypes are not implemented.
+ * Force ASCII, EBCDIC or IMAGE (with NON PRINT). LOCAL and other subtypes are not implemented.<br>
+ * EBCDIC is translated in place through the selected {@link FtpEbcdicCodePage}.<br>
+ * ASCII conversions are streamed through one {@link FtpDataCharsetConverter} per direction, the
+ * offsets of both sides being recorded in the {@link FtpOffsetIndex} of the current transfer if
+ * any.<br>
+ * One instance per channel, immutable: a change of type is done by replacing the codec in the
+ * pipeline (see DataNetworkHandler.setCorrectCodec).
  * 
  * @author Frederic Bregier
  * 
  */
-@Sharable
 class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     /*
      * 3.1.1. DATA TYPES Data representations are handled in FTP by a user specifying a
@@ -123,27 +128,50 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     /**
      * Charset to use
      */
-    private Charset charsetName;
+    private final Charset charsetName = Charset.defaultCharset();
 
     /**
      * Type of transfer
      */
-    private TransferType type = null;
+    private final TransferType type;
 
     /**
      * Sub Type of transfer
      */
-    private TransferSubType subType = null;
+    private final TransferSubType subType;
+
+    /**
+     * EBCDIC code page
+     */
+    private final FtpEbcdicCodePage codePage;
+
+    /**
+     * Converter from network to local (Store), only used from the channel event loop
+     */
+    private FtpDataCharsetConverter decoder = null;
+
+    /**
+     * Converter from local to network (Retrieve), only used from the channel event loop
+     */
+    private FtpDataCharsetConverter encoder = null;
+
+    /**
+     * Offset index of the current transfer (not a setting of the codec)
+     */
+    private volatile FtpOffsetIndex offsetIndex = null;
 
     /**
      * @param type
      * @param subType
+     * @param codePage
+     *            the EBCDIC code page for TYPE E
      */
-    public FtpDataTypeCodec(TransferType type, TransferSubType subType) {
+    public FtpDataTypeCodec(TransferType type, TransferSubType subType,
+            FtpEbcdicCodePage codePage) {
         super();
-        setCharset(null);
         this.type = type;
         this.subType = subType;
+        this.codePage = codePage;
     }
 
     /**
@@ -154,14 +182,10 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     }
 
     /**
-     * @param type
-     *            the type to set
-     * @param subType
-     *            the subType to set
+     * @return the EBCDIC code page
      */
-    public void setFullType(TransferType type, TransferSubType subType) {
-        this.type = type;
-        this.subType = subType;
+    public FtpEbcdicCodePage getCodePage() {
+        return codePage;
     }
 
     /**
@@ -172,16 +196,11 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     }
 
     /**
-     * Set the charset
-     * 
-     * @param charset
+     * @param offsetIndex
+     *            the offset index of the transfer about to start, null if none
      */
-    private void setCharset(Charset charset) {
-        if (charset == null) {
-            charsetName = Charset.defaultCharset();
-        } else {
-            charsetName = charset;
-        }
+    public void setOffsetIndex(FtpOffsetIndex offsetIndex) {
+        this.offsetIndex = offsetIndex;
     }
 
     @Override
@@ -190,9 +209,15 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
         if (type == TransferType.IMAGE) {
             out.add(msg);
             return;
+        } else if (type == TransferType.EBCDIC && codePage != null) {
+            codePage.translateToLocal(msg.getBlock());
+            out.add(msg);
+            return;
         } else if (type == TransferType.ASCII || type == TransferType.EBCDIC) {
-            ByteBuf buffer = msg.getBlock();
-            msg.setBlock(decode(buffer));
+            if (decoder == null) {
+                decoder = new FtpDataCharsetConverter(type, charsetName, false);
+            }
+            msg.setBlock(convert(ctx, decoder, msg));
             out.add(msg);
             return;
         }
@@ -201,27 +226,21 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
                 this.getClass().getName() + " codec " + type.name());
     }
 
-    /**
-     * 
-     * @param ByteBuf
-     * @return the ByteBuf
-     * @throws Exception
-     */
-    protected ByteBuf decode(ByteBuf ByteBuf)
-            throws Exception {
-        return Unpooled.copiedBuffer(ByteBuf
-                .toString(type.charset), charsetName);
-    }
-
     @Override
     protected void encode(ChannelHandlerContext ctx, DataBlock msg, List<Object> out) throws Exception {
         // Is an ASCII or EBCDIC mode or IMAGE mode
         if (type == TransferType.IMAGE) {
             out.add(msg);
             return;
+        } else if (type == TransferType.EBCDIC && codePage != null) {
+            codePage.translateToNetwork(msg.getBlock());
+            out.add(msg);
+            return;
         } else if (type == TransferType.ASCII || type == TransferType.EBCDIC) {
-            ByteBuf buffer = msg.getBlock();
-            msg.setBlock(encode(buffer));
+            if (encoder == null) {
+                encoder = new FtpDataCharsetConverter(type, charsetName, true);
+            }
+            msg.setBlock(convert(ctx, encoder, msg));
             out.add(msg);
             return;
         }
@@ -231,14 +250,60 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     }
 
     /**
+     * Convert the block and release the original buffer
      * 
-     * @param ByteBuf
-     * @return the encoded buffer
+     * @param ctx
+     * @param converter
+     * @param msg
+     * @return the converted buffer
      * @throws Exception
      */
-    protected ByteBuf encode(ByteBuf ByteBuf)
-            throws Exception {
-        String chString = ByteBuf.toString(charsetName);
-        return Unpooled.copiedBuffer(chString, type.charset);
+    private ByteBuf convert(ChannelHandlerContext ctx, FtpDataCharsetConverter converter,
+            DataBlock msg) throws Exception {
+        ByteBuf buffer = msg.getBlock();
+        try {
+            int size = buffer == null ? 0 : buffer.readableBytes();
+            ByteBuf result = converter.convert(ctx.alloc(), buffer, msg.isEOF());
+            FtpOffsetIndex index = offsetIndex;
+            if (index != null) {
+                if (converter == encoder) {
+                    index.update(size, result.readableBytes(), converter.isClean());
+                    // translated bytes before the REST offset
+                    result.skipBytes(index.skip(result.readableBytes()));
+                } else {
+                    index.update(result.readableBytes(), size, converter.isClean());
+                }
+            }
+            return result;
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Flush the last characters kept by the Store converter if the channel is closed without an
+     * explicit end of file (STREAM mode)
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        FtpDataCharsetConverter converter = decoder;
+        decoder = null;
+        if (converter != null && converter.hasPending()) {
+            ByteBuf buffer = converter.convert(ctx.alloc(), Unpooled.EMPTY_BUFFER, true);
+            FtpOffsetIndex index = offsetIndex;
+            if (index != null) {
+                index.update(buffer.readableBytes(), 0, true);
+            }
+            if (buffer.isReadable()) {
+                DataBlock dataBlock = new DataBlock();
+                dataBlock.setBlock(buffer);
+                ctx.fireChannelRead(dataBlock);
+            } else {
+                buffer.release();
+            }
+        }
+        super.channelInactive(ctx);
     }
 }
@@ -0,0 +1,503 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * MODE Z encoder: one zlib stream per transfer.<br>
+ * <br>
+ * Sequentially, one Deflater compresses the blocks in order. In parallel mode, each block is
+ * compressed as an independent raw deflate chunk on a worker pool, primed with the last 32 KB of
+ * the previous block as dictionary and ended by a sync flush, such that the chunks concatenated
+ * in order, between one zlib header and the combined Adler32, are a standard zlib stream. The
+ * compressed chunks are written in order from the event loop, each one completing the promise of
+ * its block. The sync flush needs Java 7: on a Java 6 runtime, the compression is sequential.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class FtpDataZlibEncoder {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpDataZlibEncoder.class);
+
+    /**
+     * Deflate window size, used as dictionary size between chunks
+     */
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    /**
+     * Deflater.SYNC_FLUSH (Java 7)
+     */
+    private static final int SYNC_FLUSH = 2;
+
+    /**
+     * Deflater.deflate(byte[], int, int, int) if available (Java 7)
+     */
+    private static final Method DEFLATE_FLUSH;
+
+    static {
+        Method method = null;
+        try {
+            method = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class,
+                    int.class);
+        } catch (NoSuchMethodException e) {
+            logger.info("MODE Z parallel compression not available before Java 7");
+        }
+        DEFLATE_FLUSH = method;
+    }
+
+    /**
+     * Compression level
+     */
+    private final int level;
+
+    /**
+     * Worker pool for parallel mode, null for sequential
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Deflater of the sequential mode
+     */
+    private Deflater deflater = null;
+
+    /**
+     * Chunks not yet written, in order (event loop only)
+     */
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+
+    /**
+     * Last bytes of the previous block, dictionary of the next chunk (event loop only)
+     */
+    private byte[] dictionary = null;
+
+    /**
+     * True once the zlib header is written (event loop only)
+     */
+    private boolean headerWritten = false;
+
+    /**
+     * Adler32 of the chunks already written (event loop only)
+     */
+    private long adler = 1;
+
+    /**
+     * First compression error: the stream is broken, every following block is failed (event
+     * loop only)
+     */
+    private Throwable failure = null;
+
+    /**
+     * @param level
+     *            compression level
+     * @param executor
+     *            worker pool for parallel mode, null for sequential
+     */
+    FtpDataZlibEncoder(int level, ExecutorService executor) {
+        this.level = level;
+        this.executor = DEFLATE_FLUSH == null ? null : executor;
+    }
+
+    /**
+     * Compress the block and write it, from the event loop
+     * 
+     * @param ctx
+     * @param msg
+     * @param promise
+     */
+    void write(ChannelHandlerContext ctx, DataBlock msg, ChannelPromise promise) {
+        ByteBuf buffer = msg.getBlock();
+        boolean last = msg.isEOF();
+        if (buffer != null) {
+            buffer.retain();
+        }
+        msg.clear();
+        try {
+            if (failure != null) {
+                promise.tryFailure(failure);
+            } else if (executor == null) {
+                ctx.write(deflate(ctx.alloc(), buffer, last), promise);
+            } else {
+                submit(ctx, buffer, last, promise);
+                buffer = null;
+            }
+        } catch (RuntimeException e) {
+            promise.tryFailure(e);
+            fail(ctx, e);
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Sequential compression
+     */
+    private ByteBuf deflate(ByteBufAllocator alloc, ByteBuf buffer, boolean last) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        int length = buffer == null ? 0 : buffer.readableBytes();
+        if (length > 0) {
+            setInput(deflater, buffer);
+        }
+        ByteBuf out = alloc.heapBuffer(length / 2 + 64);
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflateInto(deflater, out, false);
+            }
+            deflater.end();
+            deflater = null;
+        } else {
+            while (!deflater.needsInput()) {
+                deflateInto(deflater, out, false);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Submit the block as one chunk to the worker pool
+     */
+    private void submit(final ChannelHandlerContext ctx, ByteBuf buffer, boolean last,
+            ChannelPromise promise) {
+        final Chunk chunk = new Chunk(ctx, level, buffer, dictionary, last, promise);
+        int length = buffer == null ? 0 : buffer.readableBytes();
+        if (length >= WINDOW_SIZE) {
+            dictionary = new byte[WINDOW_SIZE];
+            buffer.getBytes(buffer.writerIndex() - WINDOW_SIZE, dictionary);
+        } else if (length > 0) {
+            // keep the end of the previous dictionary with this small block
+            int previous = dictionary == null ? 0 : Math.min(dictionary.length,
+                    WINDOW_SIZE - length);
+            byte[] next = new byte[previous + length];
+            if (previous > 0) {
+                System.arraycopy(dictionary, dictionary.length - previous, next, 0, previous);
+            }
+            buffer.getBytes(buffer.readerIndex(), next, previous, length);
+            dictionary = next;
+        }
+        chunk.onDone = new Runnable() {
+            public void run() {
+                drain(ctx);
+            }
+        };
+        chunks.add(chunk);
+        try {
+            executor.execute(chunk);
+        } catch (RejectedExecutionException e) {
+            // pool stopped: compress in place
+            chunk.run();
+        }
+    }
+
+    /**
+     * Write the compressed chunks in order, from the event loop
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        Chunk chunk;
+        boolean written = false;
+        while ((chunk = chunks.peek()) != null && chunk.done) {
+            chunks.poll();
+            if (chunk.cause != null && failure == null) {
+                fail(ctx, chunk.cause);
+            }
+            if (failure != null) {
+                chunk.promise.tryFailure(failure);
+                if (chunk.result != null) {
+                    chunk.result.release();
+                    chunk.result = null;
+                }
+                continue;
+            }
+            written = true;
+            if (!headerWritten) {
+                headerWritten = true;
+                ctx.write(Unpooled.wrappedBuffer(zlibHeader(level)));
+            }
+            adler = adler32Combine(adler, chunk.adler, chunk.length);
+            if (chunk.last) {
+                ByteBuf trailer = Unpooled.buffer(4).writeInt((int) adler);
+                ctx.write(Unpooled.wrappedBuffer(chunk.result, trailer), chunk.promise);
+                headerWritten = false;
+                adler = 1;
+                dictionary = null;
+            } else {
+                ctx.write(chunk.result, chunk.promise);
+            }
+            chunk.result = null;
+        }
+        if (written) {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * Fail every block not yet written and close the data channel: once a block is missing, the
+     * following ones and the trailer would only make a corrupted zlib stream
+     * 
+     * @param ctx
+     * @param cause
+     */
+    private void fail(ChannelHandlerContext ctx, Throwable cause) {
+        logger.warn("MODE Z compression failed: " + cause.getMessage());
+        failure = cause;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        for (Chunk chunk : chunks) {
+            // results of the chunks still compressing are released by drain once done
+            chunk.promise.tryFailure(cause);
+        }
+        ctx.close();
+    }
+
+    /**
+     * Release the current state when the channel is closed
+     */
+    void release() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (failure == null) {
+            failure = new IllegalStateException("Data channel closed");
+        }
+        Iterator<Chunk> iterator = chunks.iterator();
+        while (iterator.hasNext()) {
+            Chunk chunk = iterator.next();
+            chunk.promise.tryFailure(failure);
+            // chunks still compressing are released by drain once done
+            if (chunk.done) {
+                iterator.remove();
+                if (chunk.result != null) {
+                    chunk.result.release();
+                    chunk.result = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the readable bytes of the buffer as input of the deflater. The buffer must stay
+     * unchanged until the input is consumed.
+     */
+    private static void setInput(Deflater deflater, ByteBuf buffer) {
+        int length = buffer.readableBytes();
+        if (buffer.hasArray()) {
+            deflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(),
+                    length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.getBytes(buffer.readerIndex(), bytes);
+            deflater.setInput(bytes);
+        }
+    }
+
+    /**
+     * Deflate into the writable part of the heap buffer
+     * 
+     * @param deflater
+     * @param out
+     * @param syncFlush
+     *            True to use a sync flush
+     * @return True if the output filled the buffer, such that another call is needed
+     */
+    private static boolean deflateInto(Deflater deflater, ByteBuf out, boolean syncFlush) {
+        if (!out.isWritable()) {
+            out.ensureWritable(Math.max(out.capacity(), 64));
+        }
+        int writable = out.writableBytes();
+        int offset = out.arrayOffset() + out.writerIndex();
+        int length;
+        if (syncFlush) {
+            try {
+                length = ((Integer) DEFLATE_FLUSH.invoke(deflater, out.array(), offset,
+                        writable, SYNC_FLUSH)).intValue();
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot flush the deflater", e);
+            }
+        } else {
+            length = deflater.deflate(out.array(), offset, writable);
+        }
+        out.writerIndex(out.writerIndex() + length);
+        return length == writable;
+    }
+
+    /**
+     * 
+     * @param level
+     * @return the 2 bytes zlib header for this level
+     */
+    private static byte[] zlibHeader(int level) {
+        int flevel;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+            flevel = 2;
+        } else if (level < 2) {
+            flevel = 0;
+        } else if (level < 6) {
+            flevel = 1;
+        } else {
+            flevel = 3;
+        }
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    /**
+     * 
+     * @param adler1
+     *            Adler32 of the first part
+     * @param adler2
+     *            Adler32 of the second part
+     * @param length2
+     *            length of the second part
+     * @return the Adler32 of both parts concatenated (as adler32_combine of zlib)
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * One block compressed on the worker pool
+     */
+    private static class Chunk implements Runnable {
+        private final ByteBufAllocator alloc;
+        private final EventExecutor eventExecutor;
+        private final int level;
+        private final ByteBuf buffer;
+        private final byte[] dictionary;
+        private final boolean last;
+        private final ChannelPromise promise;
+        private final int length;
+        private Runnable onDone;
+        private ByteBuf result;
+        private long adler;
+        private Throwable cause;
+        private volatile boolean done = false;
+
+        private Chunk(ChannelHandlerContext ctx, int level, ByteBuf buffer, byte[] dictionary,
+                boolean last, ChannelPromise promise) {
+            this.alloc = ctx.alloc();
+            this.eventExecutor = ctx.executor();
+            this.level = level;
+            this.buffer = buffer;
+            this.dictionary = dictionary;
+            this.last = last;
+            this.promise = promise;
+            this.length = buffer == null ? 0 : buffer.readableBytes();
+        }
+
+        public void run() {
+            Deflater raw = new Deflater(level, true);
+            ByteBuf out = null;
+            try {
+                if (dictionary != null) {
+                    raw.setDictionary(dictionary);
+                }
+                Adler32 checksum = new Adler32();
+                out = alloc.heapBuffer(length / 2 + 64);
+                if (length > 0) {
+                    if (buffer.hasArray()) {
+                        checksum.update(buffer.array(), buffer.arrayOffset() +
+                                buffer.readerIndex(), length);
+                    } else {
+                        byte[] bytes = new byte[length];
+                        buffer.getBytes(buffer.readerIndex(), bytes);
+                        checksum.update(bytes, 0, length);
+                    }
+                    setInput(raw, buffer);
+                }
+                if (last) {
+                    raw.finish();
+                    while (!raw.finished()) {
+                        deflateInto(raw, out, false);
+                    }
+                } else {
+                    // sync flush until the output does not fill the buffer
+                    while (deflateInto(raw, out, true)) {
+                        // continue
+                    }
+                }
+                adler = checksum.getValue();
+                result = out;
+                out = null;
+            } catch (Throwable e) {
+                cause = e;
+            } finally {
+                raw.end();
+                if (out != null) {
+                    out.release();
+                }
+                if (buffer != null) {
+                    buffer.release();
+                }
+                done = true;
+                try {
+                    eventExecutor.execute(onDone);
+                } catch (RejectedExecutionException e) {
+                    // channel closed
+                }
+            }
+        }
+    }
+}
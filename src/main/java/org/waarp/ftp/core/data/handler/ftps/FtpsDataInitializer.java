@@ -73,8 +73,8 @@ public class FtpsDataInitializer extends FtpDataInitializer {
         if (limitChannel != null) {
             pipeline.addLast(FtpDataInitializer.CODEC_LIMIT + "CHANNEL", limitChannel);
         }
-        pipeline.addLast(FtpDataInitializer.CODEC_TYPE, ftpDataTypeCodec);
-        pipeline.addLast(FtpDataInitializer.CODEC_STRUCTURE, ftpDataStructureCodec);
+        pipeline.addLast(FtpDataInitializer.CODEC_TYPE, newTypeCodec());
+        pipeline.addLast(FtpDataInitializer.CODEC_STRUCTURE, newStructureCodec());
         // and then business logic. New one on every connection
         DataBusinessHandler newbusiness = dataBusinessHandler.newInstance();
         DataNetworkHandler newNetworkHandler = new DataNetworkHandler(configuration, newbusiness, isActive);
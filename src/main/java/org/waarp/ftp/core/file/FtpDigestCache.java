@@ -0,0 +1,285 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Cache of file digests (CRC, MD5, SHA-1) for XCRC, XMD5 and XSHA1.<br>
+ * <br>
+ * Entries are keyed by absolute path and are only valid while the file keeps the same length and
+ * modification time. The number of entries is bounded, the least recently used ones being
+ * evicted first. The cache can be saved into and loaded from a compact file such that a restart
+ * does not lose it.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDigestCache {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpDigestCache.class);
+
+    /**
+     * Header of the persistent file
+     */
+    private static final int MAGIC = 0x57464443;
+    private static final int VERSION = 1;
+
+    /**
+     * Maximum number of entries (0 means no cache)
+     */
+    private volatile int maxEntries;
+
+    /**
+     * Persistent file (null if none)
+     */
+    private volatile String persistentFile = null;
+
+    /**
+     * Entries in access order
+     */
+    private final LinkedHashMap<String, FtpDigestEntry> entries =
+            new LinkedHashMap<String, FtpDigestEntry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FtpDigestEntry> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+
+    /**
+     * 
+     * @param maxEntries
+     *            maximum number of entries (0 means no cache)
+     */
+    public FtpDigestCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the maximum number of entries
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries (0 means no cache)
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries < 0 ? 0 : maxEntries;
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (entries.size() > this.maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return the persistent file (null if none)
+     */
+    public String getPersistentFile() {
+        return persistentFile;
+    }
+
+    /**
+     * @param persistentFile
+     *            the persistent file (null if none)
+     */
+    public void setPersistentFile(String persistentFile) {
+        this.persistentFile = persistentFile;
+    }
+
+    /**
+     * 
+     * @param file
+     * @return the entry for this file if still valid, else null
+     */
+    public synchronized FtpDigestEntry get(File file) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+        String path = file.getAbsolutePath();
+        FtpDigestEntry entry = entries.get(path);
+        if (entry != null && !entry.isValid(file)) {
+            entries.remove(path);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Add the entry, merged with the already known digests of the same version of the file
+     * 
+     * @param entry
+     */
+    public synchronized void put(FtpDigestEntry entry) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        FtpDigestEntry previous = entries.get(entry.getPath());
+        if (previous != null && previous.isSameVersion(entry)) {
+            entry = entry.merge(previous);
+        }
+        entries.put(entry.getPath(), entry);
+    }
+
+    /**
+     * @return the current number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Load the entries from the persistent file if any
+     */
+    public void load() {
+        String filename = persistentFile;
+        if (filename == null || maxEntries <= 0) {
+            return;
+        }
+        File file = new File(filename);
+        if (!file.isFile()) {
+            return;
+        }
+        DataInputStream input = null;
+        List<FtpDigestEntry> loaded = new ArrayList<FtpDigestEntry>();
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                logger.warn("Digest cache file ignored since not compatible: " + filename);
+                return;
+            }
+            int nb = input.readInt();
+            for (int i = 0; i < nb; i++) {
+                String path = input.readUTF();
+                long length = input.readLong();
+                long lastModified = input.readLong();
+                long crc = input.readLong();
+                byte[] md5 = readDigest(input);
+                byte[] sha1 = readDigest(input);
+                loaded.add(new FtpDigestEntry(path, length, lastModified, crc, md5, sha1));
+            }
+        } catch (IOException e) {
+            logger.warn("Digest cache file partially loaded: " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        synchronized (this) {
+            for (FtpDigestEntry entry : loaded) {
+                put(entry);
+            }
+        }
+        logger.debug("Digest cache loaded with " + loaded.size() + " entries");
+    }
+
+    /**
+     * Save the entries into the persistent file if any
+     */
+    public void save() {
+        String filename = persistentFile;
+        if (filename == null || maxEntries <= 0) {
+            return;
+        }
+        List<FtpDigestEntry> saved;
+        synchronized (this) {
+            saved = new ArrayList<FtpDigestEntry>(entries.values());
+        }
+        File file = new File(filename);
+        File temp = new File(filename + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(saved.size());
+            // least recently used first such that the order is kept when loading
+            for (FtpDigestEntry entry : saved) {
+                output.writeUTF(entry.getPath());
+                output.writeLong(entry.getLength());
+                output.writeLong(entry.getLastModified());
+                output.writeLong(entry.getCRC());
+                writeDigest(output, entry.getMD5());
+                writeDigest(output, entry.getSHA1());
+            }
+            output.close();
+            output = null;
+            if (file.exists() && !file.delete()) {
+                logger.warn("Digest cache file cannot be replaced: " + filename);
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                logger.warn("Digest cache file cannot be renamed: " + filename);
+            }
+        } catch (IOException e) {
+            logger.warn("Digest cache file cannot be saved: " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static byte[] readDigest(DataInputStream input) throws IOException {
+        int length = input.readUnsignedByte();
+        if (length == 0) {
+            return null;
+        }
+        byte[] digest = new byte[length];
+        input.readFully(digest);
+        return digest;
+    }
+
+    private static void writeDigest(DataOutputStream output, byte[] digest) throws IOException {
+        if (digest == null) {
+            output.writeByte(0);
+        } else {
+            output.writeByte(digest.length);
+            output.write(digest);
+        }
+    }
+}
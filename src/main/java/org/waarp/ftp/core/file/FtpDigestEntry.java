@@ -0,0 +1,155 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.file;
+
+import java.io.File;
+
+/**
+ * Digests of one file, valid as long as the file keeps the same length and modification time
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDigestEntry {
+    /**
+     * Absolute path of the file
+     */
+    private final String path;
+
+    /**
+     * Length of the file when the digests were computed
+     */
+    private final long length;
+
+    /**
+     * Modification time of the file when the digests were computed
+     */
+    private final long lastModified;
+
+    /**
+     * CRC32 (-1 if not computed)
+     */
+    private final long crc;
+
+    /**
+     * MD5 (null if not computed)
+     */
+    private final byte[] md5;
+
+    /**
+     * SHA-1 (null if not computed)
+     */
+    private final byte[] sha1;
+
+    /**
+     * 
+     * @param path
+     * @param length
+     * @param lastModified
+     * @param crc
+     *            -1 if not computed
+     * @param md5
+     *            null if not computed
+     * @param sha1
+     *            null if not computed
+     */
+    public FtpDigestEntry(String path, long length, long lastModified, long crc,
+            byte[] md5, byte[] sha1) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.crc = crc;
+        this.md5 = md5;
+        this.sha1 = sha1;
+    }
+
+    /**
+     * 
+     * @param file
+     * @return True if this entry still describes the given file
+     */
+    public boolean isValid(File file) {
+        return path.equals(file.getAbsolutePath()) && file.isFile() &&
+                file.length() == length && file.lastModified() == lastModified;
+    }
+
+    /**
+     * 
+     * @param other
+     * @return True if both entries describe the same version of the same file
+     */
+    public boolean isSameVersion(FtpDigestEntry other) {
+        return path.equals(other.path) && length == other.length &&
+                lastModified == other.lastModified;
+    }
+
+    /**
+     * 
+     * @param other
+     *            an entry of the same version of the file
+     * @return a new entry with the digests of this entry completed by the ones of the other
+     */
+    public FtpDigestEntry merge(FtpDigestEntry other) {
+        return new FtpDigestEntry(path, length, lastModified,
+                crc >= 0 ? crc : other.crc,
+                md5 != null ? md5 : other.md5,
+                sha1 != null ? sha1 : other.sha1);
+    }
+
+    /**
+     * @return the absolute path of the file
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the length of the file
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the modification time of the file
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the CRC32, -1 if not computed
+     */
+    public long getCRC() {
+        return crc;
+    }
+
+    /**
+     * @return the MD5, null if not computed
+     */
+    public byte[] getMD5() {
+        return md5;
+    }
+
+    /**
+     * @return the SHA-1, null if not computed
+     */
+    public byte[] getSHA1() {
+        return sha1;
+    }
+}
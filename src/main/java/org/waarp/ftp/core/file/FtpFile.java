@@ -17,6 +17,8 @@
  */
 package org.waarp.ftp.core.file;
 
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.file.FileInterface;
 
 /**
@@ -31,4 +33,28 @@ public interface FtpFile extends FileInterface {
      */
     public void trueRetrieve();
 
+    /**
+     * Write the data already received by the current Store like transfer to the file (restart
+     * marker received in MODE B)
+     * 
+     * @return the position in the file after the data received, to be used by a REST command
+     * @throws FileTransferException
+     */
+    public long checkpointStore() throws FileTransferException;
+
+    /**
+     * 
+     * @return the real path of the file on the storage (not the FTP path), used to select the
+     *         queue of its storage device
+     * @throws CommandAbstractException
+     */
+    public String getStoragePath() throws CommandAbstractException;
+
+    /**
+     * 
+     * @return the offset index of the current TYPE A transfer, updated by the Type codec, or
+     *         null if none
+     */
+    public FtpOffsetIndex getOffsetIndex();
+
 }
@@ -0,0 +1,437 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+import org.waarp.ftp.core.config.FtpConfiguration;
+
+/**
+ * Sparse index of checkpoints between the offset in the translated stream (network side) and
+ * the offset in the file (local side) of TYPE A transfers.<br>
+ * <br>
+ * In TYPE A, the REST offset counts bytes of the translated stream (RFC 3659), which does not
+ * map directly to an offset in the file (end of lines and charset conversion). The checkpoints
+ * are recorded by the Type codec during RETR and STOR, at block boundaries where the conversion
+ * has no pending state, every interval bytes of the file and at the end of the transfer. A REST
+ * can then seek to the nearest checkpoint and only translate forward a small amount.<br>
+ * <br>
+ * The index is saved in the metadata directory, out of reach of the clients (see
+ * {@link FtpConfiguration#getMetadataFile(File, String)}), and is only valid while the file
+ * keeps the same length and modification time, and for the same conversion.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpOffsetIndex {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpOffsetIndex.class);
+
+    /**
+     * Header of the persistent file
+     */
+    private static final int MAGIC = 0x5746494F;
+    private static final int VERSION = 1;
+
+    /**
+     * Extension of the persistent file
+     */
+    private static final String EXTENSION = ".ftpidx";
+
+    /**
+     * Default number of file bytes between two checkpoints
+     */
+    public static final long DEFAULT_INTERVAL = 8 * 1024 * 1024;
+
+    /**
+     * Indexed file
+     */
+    private final File file;
+
+    /**
+     * Persistent file of the index
+     */
+    private final File indexFile;
+
+    /**
+     * Conversion of the checkpoints (type, local charset and line separator)
+     */
+    private final String key;
+
+    /**
+     * Minimal number of file bytes between two checkpoints (0 means no checkpoint)
+     */
+    private final long interval;
+
+    /**
+     * Checkpoints, (0, 0) being always the first one
+     */
+    private long[] networkOffsets = new long[16];
+    private long[] localOffsets = new long[16];
+    private int count = 1;
+
+    /**
+     * Current offsets of the transfer
+     */
+    private long network = 0;
+    private long local = 0;
+
+    /**
+     * Offsets at the last block boundary without pending state, saved as the last checkpoint
+     */
+    private long cleanNetwork = 0;
+    private long cleanLocal = 0;
+
+    /**
+     * Number of translated bytes still to drop before sending (Retrieve)
+     */
+    private long skip = 0;
+
+    /**
+     * True if checkpoints were added since loaded
+     */
+    private boolean modified = false;
+
+    /**
+     * 
+     * @param configuration
+     * @param file
+     *            the indexed file
+     * @param key
+     *            the conversion (see {@link #keyOf(TransferType)})
+     * @param interval
+     *            minimal number of file bytes between two checkpoints (0 means no checkpoint)
+     */
+    public FtpOffsetIndex(FtpConfiguration configuration, File file, String key, long interval) {
+        this.file = file;
+        this.indexFile = getIndexFile(configuration, file);
+        this.key = key;
+        this.interval = interval;
+    }
+
+    /**
+     * 
+     * @param type
+     * @return the key of the conversion of this type with the local charset and line separator
+     */
+    public static String keyOf(TransferType type) {
+        return type.name() + '/' + Charset.defaultCharset().name() + '/' +
+                ("\r\n".equals(System.getProperty("line.separator")) ? "CRLF" : "LF");
+    }
+
+    /**
+     * 
+     * @param configuration
+     * @param file
+     * @return the persistent file of the index of this file
+     */
+    public static File getIndexFile(FtpConfiguration configuration, File file) {
+        return configuration.getMetadataFile(file, EXTENSION);
+    }
+
+    /**
+     * Load the index of the file if any and still valid
+     * 
+     * @param configuration
+     * @param file
+     * @param key
+     * @param interval
+     * @return the index, or a new empty index if none is valid
+     */
+    public static FtpOffsetIndex load(FtpConfiguration configuration, File file, String key,
+            long interval) {
+        FtpOffsetIndex index = new FtpOffsetIndex(configuration, file, key, interval);
+        File indexFile = index.indexFile;
+        if (!indexFile.isFile()) {
+            return index;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION ||
+                    !key.equals(input.readUTF()) || input.readLong() != file.length() ||
+                    input.readLong() != file.lastModified()) {
+                logger.debug("Offset index ignored since not valid: " + indexFile);
+                return index;
+            }
+            int nb = input.readInt();
+            long[] networks = new long[nb + 16];
+            long[] locals = new long[nb + 16];
+            for (int i = 0; i < nb; i++) {
+                networks[i] = input.readLong();
+                locals[i] = input.readLong();
+            }
+            if (nb > 0 && networks[0] == 0 && locals[0] == 0) {
+                index.networkOffsets = networks;
+                index.localOffsets = locals;
+                index.count = nb;
+            }
+        } catch (IOException e) {
+            logger.debug("Offset index ignored: " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Delete the persistent index of the file if any
+     * 
+     * @param configuration
+     * @param file
+     */
+    public static void delete(FtpConfiguration configuration, File file) {
+        File indexFile = getIndexFile(configuration, file);
+        if (indexFile.exists() && !indexFile.delete()) {
+            logger.debug("Offset index cannot be deleted: " + indexFile);
+        }
+    }
+
+    /**
+     * Save the index if new checkpoints were added, valid for the current length and
+     * modification time of the file
+     */
+    public void save() {
+        if (interval <= 0 || !file.isFile()) {
+            return;
+        }
+        long[] networks;
+        long[] locals;
+        int nb;
+        synchronized (this) {
+            if (!modified) {
+                return;
+            }
+            modified = false;
+            add(cleanNetwork, cleanLocal);
+            networks = networkOffsets.clone();
+            locals = localOffsets.clone();
+            nb = count;
+        }
+        long length = file.length();
+        // checkpoints after the end of the file (aborted Store) are not kept
+        while (nb > 1 && locals[nb - 1] > length) {
+            nb--;
+        }
+        File temp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            File directory = indexFile.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                logger.debug("Metadata directory cannot be created: " + directory);
+                return;
+            }
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(key);
+            output.writeLong(length);
+            output.writeLong(file.lastModified());
+            output.writeInt(nb);
+            for (int i = 0; i < nb; i++) {
+                output.writeLong(networks[i]);
+                output.writeLong(locals[i]);
+            }
+            output.close();
+            output = null;
+            if (indexFile.exists() && !indexFile.delete()) {
+                logger.debug("Offset index cannot be replaced: " + indexFile);
+                return;
+            }
+            if (!temp.renameTo(indexFile)) {
+                logger.debug("Offset index cannot be renamed: " + indexFile);
+            }
+        } catch (IOException e) {
+            logger.debug("Offset index cannot be saved: " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                }
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param networkOffset
+     * @return the rank of the last checkpoint not after this offset of the translated stream
+     */
+    public synchronized int floor(long networkOffset) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (networkOffsets[middle] <= networkOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 
+     * @param rank
+     * @return the offset in the translated stream of this checkpoint
+     */
+    public synchronized long getNetworkOffset(int rank) {
+        return networkOffsets[rank];
+    }
+
+    /**
+     * 
+     * @param rank
+     * @return the offset in the file of this checkpoint
+     */
+    public synchronized long getLocalOffset(int rank) {
+        return localOffsets[rank];
+    }
+
+    /**
+     * 
+     * @return the last checkpoint (the end of the file if the last transfer covered it)
+     */
+    public synchronized int last() {
+        return count - 1;
+    }
+
+    /**
+     * Add a checkpoint found after one, the following ones being no more valid (Store)
+     * 
+     * @param rank
+     *            the checkpoint before the new one
+     * @param networkOffset
+     * @param localOffset
+     * @return the rank of the new checkpoint
+     */
+    public synchronized int insert(int rank, long networkOffset, long localOffset) {
+        if (count > rank + 1) {
+            count = rank + 1;
+            modified = true;
+        }
+        add(networkOffset, localOffset);
+        return count - 1;
+    }
+
+    /**
+     * Start a transfer from one checkpoint
+     * 
+     * @param rank
+     *            the checkpoint to start from
+     * @param skip
+     *            the number of translated bytes to drop before sending (Retrieve)
+     * @param truncate
+     *            True if the following checkpoints are no more valid (Store)
+     */
+    public synchronized void start(int rank, long skip, boolean truncate) {
+        network = networkOffsets[rank];
+        local = localOffsets[rank];
+        cleanNetwork = network;
+        cleanLocal = local;
+        this.skip = skip;
+        if (truncate && count > rank + 1) {
+            count = rank + 1;
+            modified = true;
+        }
+    }
+
+    /**
+     * 
+     * @param available
+     *            the number of translated bytes available
+     * @return the number of those bytes to drop since before the REST offset
+     */
+    public synchronized int skip(int available) {
+        if (skip <= 0) {
+            return 0;
+        }
+        int drop = (int) Math.min(skip, available);
+        skip -= drop;
+        return drop;
+    }
+
+    /**
+     * Account one converted block and add a checkpoint if possible
+     * 
+     * @param localBytes
+     *            number of bytes of the file side
+     * @param networkBytes
+     *            number of bytes of the translated stream
+     * @param clean
+     *            True if the conversion has no pending state after this block
+     */
+    public synchronized void update(long localBytes, long networkBytes, boolean clean) {
+        local += localBytes;
+        network += networkBytes;
+        if (!clean || interval <= 0) {
+            return;
+        }
+        cleanNetwork = network;
+        cleanLocal = local;
+        modified = true;
+        if (local - localOffsets[count - 1] >= interval) {
+            add(network, local);
+        }
+    }
+
+    /**
+     * Add one checkpoint after the last one
+     * 
+     * @param networkOffset
+     * @param localOffset
+     */
+    private void add(long networkOffset, long localOffset) {
+        if (localOffset <= localOffsets[count - 1] || networkOffset <= networkOffsets[count - 1]) {
+            return;
+        }
+        if (count == networkOffsets.length) {
+            long[] networks = new long[count * 2];
+            long[] locals = new long[count * 2];
+            System.arraycopy(networkOffsets, 0, networks, 0, count);
+            System.arraycopy(localOffsets, 0, locals, 0, count);
+            networkOffsets = networks;
+            localOffsets = locals;
+        }
+        networkOffsets[count] = networkOffset;
+        localOffsets[count] = localOffset;
+        count++;
+    }
+}
@@ -111,6 +111,21 @@ public class FtpSession implements SessionInterface {
      */
     private Restart restart = null;
 
+    /**
+     * Space requested by ALLO for the next Store like command (0 if none)
+     */
+    private long allocation = 0;
+
+    /**
+     * Byte range given by RANG for the next Retrieve or Store command (-1 if none)
+     */
+    private long rangeStart = -1;
+
+    /**
+     * Last byte (inclusive) of the range given by RANG (-1 if none)
+     */
+    private long rangeEnd = -1;
+
     /**
      * Is the control ready to accept command
      */
@@ -175,6 +190,55 @@ public class FtpSession implements SessionInterface {
         return restart;
     }
 
+    /**
+     * @return the space requested by ALLO for the next Store like command (0 if none)
+     */
+    public long getAllocation() {
+        return allocation;
+    }
+
+    /**
+     * @param allocation
+     *            the space requested by ALLO for the next Store like command (0 to reset)
+     */
+    public void setAllocation(long allocation) {
+        this.allocation = allocation;
+    }
+
+    /**
+     * @return the first byte of the range given by RANG for the next Retrieve or Store command
+     *         (-1 if none)
+     */
+    public long getRangeStart() {
+        return rangeStart;
+    }
+
+    /**
+     * @return the last byte (inclusive) of the range given by RANG (-1 if none)
+     */
+    public long getRangeEnd() {
+        return rangeEnd;
+    }
+
+    /**
+     * @param rangeStart
+     *            the first byte of the range
+     * @param rangeEnd
+     *            the last byte (inclusive) of the range
+     */
+    public void setRange(long rangeStart, long rangeEnd) {
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+    }
+
+    /**
+     * Reset the range given by RANG
+     */
+    public void resetRange() {
+        rangeStart = -1;
+        rangeEnd = -1;
+    }
+
     /**
      * This function is called when the Command Channel is connected (from channelConnected of the
      * NetworkHandler)
@@ -343,6 +407,8 @@ public class FtpSession implements SessionInterface {
         previousCommand = null;
         replyCode = null;
         answer = null;
+        allocation = 0;
+        resetRange();
         isReady.cancel();
     }
 
@@ -449,6 +515,8 @@ public class FtpSession implements SessionInterface {
         getDataConn().setStructure(FtpArgumentCode.TransferStructure.FILE);
         getDataConn().setType(FtpArgumentCode.TransferType.ASCII);
         getDataConn().setSubType(TransferSubType.NONPRINT);
+        allocation = 0;
+        resetRange();
         reinitFtpAuth();
     }
 
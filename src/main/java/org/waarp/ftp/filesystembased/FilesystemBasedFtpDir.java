@@ -17,9 +17,16 @@
  */
 package org.waarp.ftp.filesystembased;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply450Exception;
+import org.waarp.common.command.exception.Reply550Exception;
 import org.waarp.common.file.filesystembased.FilesystemBasedDirImpl;
 import org.waarp.common.file.filesystembased.FilesystemBasedOptsMLSxImpl;
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.file.FtpDigestEntry;
 import org.waarp.ftp.core.file.FtpDir;
 import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
@@ -48,4 +55,102 @@ public abstract class FilesystemBasedFtpDir extends FilesystemBasedDirImpl imple
             boolean append) throws CommandAbstractException {
         return (FtpFile) super.setFile(path, append);
     }
+
+    /**
+     * Attach the digests computed during a transfer
+     * 
+     * @param entry
+     */
+    public void setDigest(FtpDigestEntry entry) {
+        ((FtpSession) getSession()).getConfiguration().getDigestCache().put(entry);
+    }
+
+    /**
+     * 
+     * @param file
+     * @return the digests already known for this file if still valid, else null
+     */
+    protected FtpDigestEntry getDigest(File file) {
+        return ((FtpSession) getSession()).getConfiguration().getDigestCache().get(file);
+    }
+
+    @Override
+    public long getCRC(String path) throws CommandAbstractException {
+        File file = getFileFromPath(path);
+        FtpDigestEntry entry = getDigest(file);
+        if (entry != null && entry.getCRC() >= 0) {
+            return entry.getCRC();
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        long crc = computeCRC(file, path);
+        keepDigest(file, length, lastModified, crc, null, null);
+        return crc;
+    }
+
+    @Override
+    public byte[] getMD5(String path) throws CommandAbstractException {
+        File file = getFileFromPath(path);
+        FtpDigestEntry entry = getDigest(file);
+        if (entry != null && entry.getMD5() != null) {
+            return entry.getMD5();
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        byte[] md5 = super.getMD5(path);
+        keepDigest(file, length, lastModified, -1, md5, null);
+        return md5;
+    }
+
+    @Override
+    public byte[] getSHA1(String path) throws CommandAbstractException {
+        File file = getFileFromPath(path);
+        FtpDigestEntry entry = getDigest(file);
+        if (entry != null && entry.getSHA1() != null) {
+            return entry.getSHA1();
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        byte[] sha1 = super.getSHA1(path);
+        keepDigest(file, length, lastModified, -1, null, sha1);
+        return sha1;
+    }
+
+    /**
+     * Compute the CRC using several threads for large files, else sequentially
+     * 
+     * @param file
+     * @param path
+     * @return the CRC of the file
+     * @throws CommandAbstractException
+     */
+    private long computeCRC(File file, String path) throws CommandAbstractException {
+        FtpConfiguration configuration = ((FtpSession) getSession()).getConfiguration();
+        long threshold = configuration.getParallelCrcThreshold();
+        if (threshold <= 0 || configuration.getDigestThreads() < 2 ||
+                file.length() < threshold) {
+            return super.getCRC(path);
+        }
+        try {
+            return FilesystemBasedParallelCrc.getCRC(file,
+                    configuration.getFtpInternalConfiguration().getDigestExecutor(),
+                    configuration.getDigestThreads());
+        } catch (IOException e) {
+            throw new Reply550Exception("Error while reading the file");
+        } catch (InterruptedException e) {
+            throw new Reply450Exception("CRC computation interrupted");
+        }
+    }
+
+    /**
+     * Keep the digest computed from the file, unless the file changed during the computation
+     */
+    private void keepDigest(File file, long length, long lastModified, long crc, byte[] md5,
+            byte[] sha1) {
+        if (file.length() != length || file.lastModified() != lastModified) {
+            return;
+        }
+        setDigest(new FtpDigestEntry(file.getAbsolutePath(), length, lastModified, crc, md5,
+                sha1));
+    }
 }
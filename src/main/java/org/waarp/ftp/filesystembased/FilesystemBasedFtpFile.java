@@ -17,20 +17,55 @@
  */
 package org.waarp.ftp.filesystembased;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.internal.PlatformDependent;
 
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply450Exception;
+import org.waarp.common.command.exception.Reply452Exception;
+import org.waarp.common.command.exception.Reply503Exception;
+import org.waarp.common.command.exception.Reply504Exception;
 import org.waarp.common.exception.FileEndOfTransferException;
 import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.Restart;
 import org.waarp.common.file.filesystembased.FilesystemBasedFileImpl;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpConfiguration.StoreDurability;
+import org.waarp.ftp.core.config.FtpInternalConfiguration;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
+import org.waarp.ftp.core.data.FtpRangeCommit;
+import org.waarp.ftp.core.data.FtpRestartMarker;
+import org.waarp.ftp.core.data.FtpRetrieveWindow;
+import org.waarp.ftp.core.data.handler.FtpDataCharsetConverter;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
+import org.waarp.ftp.core.file.FtpDigestEntry;
 import org.waarp.ftp.core.file.FtpFile;
+import org.waarp.ftp.core.file.FtpOffsetIndex;
 import org.waarp.ftp.core.session.FtpSession;
 
 /**
@@ -51,6 +86,106 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
      */
     private final ReentrantLock retrieveLock = new ReentrantLock();
 
+    /**
+     * Start position of the current retrieve (from REST), -1 if not compatible with zero-copy
+     */
+    private long retrievePosition = 0;
+
+    /**
+     * End (exclusive) of the current retrieve (from RANG), -1 for the end of the file
+     */
+    private long retrieveEnd = -1;
+
+    /**
+     * Maximum number of blocks coalesced in one write
+     */
+    private static final int STORE_MAX_COMPONENTS = 1024;
+
+    /**
+     * True if this file is opened in append mode
+     */
+    private final boolean appendStore;
+
+    /**
+     * Start position of the current store (from REST), -1 if not compatible with coalescing
+     */
+    private long storePosition = 0;
+
+    /**
+     * End (exclusive) of the byte range of the current store (from RANG), -1 if not ranged
+     */
+    private long storeRangeEnd = -1;
+
+    /**
+     * Start offset in the file of the current store
+     */
+    private volatile long storeStart = 0;
+
+    /**
+     * Number of bytes received by the current store
+     */
+    private volatile long storeWritten = 0;
+
+    /**
+     * Directory associated with this file
+     */
+    private final FilesystemBasedFtpDir ftpDir;
+
+    /**
+     * Digests of the current transfer if it covers the whole file
+     */
+    private FilesystemBasedInlineDigest inlineDigest = null;
+
+    /**
+     * True while a Store like transfer is not yet closed or aborted
+     */
+    private boolean storeInProgress = false;
+
+    /**
+     * Offset index of the current TYPE A transfer if any
+     */
+    private volatile FtpOffsetIndex offsetIndex = null;
+
+    /**
+     * Lock protecting the coalesced writes
+     */
+    private final Object storeLock = new Object();
+
+    /**
+     * FileChannel used by coalesced writes
+     */
+    private FileChannel storeChannel = null;
+
+    /**
+     * Blocks received and not yet written
+     */
+    private CompositeByteBuf storePending = null;
+
+    /**
+     * Time of the first block not yet written
+     */
+    private long storePendingTime = 0;
+
+    /**
+     * Flush of the blocks not yet written scheduled after the coalescing delay, such that they
+     * are written even if no other block arrives
+     */
+    private ScheduledFuture<?> storeFlushTimer = null;
+
+    /**
+     * FileRegion sharing the FileChannel of the whole transfer, so not closing it on release
+     */
+    private static class SharedFileRegion extends DefaultFileRegion {
+        private SharedFileRegion(FileChannel file, long position, long count) {
+            super(file, position, count);
+        }
+
+        @Override
+        protected void deallocate() {
+            // The FileChannel is closed at the end of the transfer
+        }
+    }
+
     /**
      * @param session
      * @param dir
@@ -63,6 +198,8 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
             FilesystemBasedFtpDir dir, String path, boolean append)
             throws CommandAbstractException {
         super(session, dir, path, append);
+        appendStore = append;
+        ftpDir = dir;
     }
 
     @Override
@@ -73,10 +210,597 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
             long block = (long) Math.ceil((double) length /
                     (double) getSession().getBlockSize());
             length += (block + 3) * 3;
+        } else if (isTranslatedStream()) {
+            // length of the translated stream if known from the offset index
+            long interval = ((FtpSession) getSession()).getConfiguration()
+                    .getOffsetIndexInterval();
+            if (interval > 0) {
+                FtpOffsetIndex index = FtpOffsetIndex.load(
+                        ((FtpSession) getSession()).getConfiguration(), getFileFromPath(getFile()),
+                        FtpOffsetIndex.keyOf(((FtpSession) getSession()).getDataConn().getType()),
+                        interval);
+                int last = index.last();
+                if (last > 0 && index.getLocalOffset(last) == length) {
+                    return index.getNetworkOffset(last);
+                }
+            }
         }
         return length;
     }
 
+    /**
+     * 
+     * @return True if the offsets of the transfer are offsets in a translated stream (TYPE A in
+     *         STREAM or ZLIB mode)
+     */
+    private boolean isTranslatedStream() {
+        FtpDataAsyncConn dataConn = ((FtpSession) getSession()).getDataConn();
+        return (dataConn.getType() == TransferType.ASCII ||
+                (dataConn.getType() == TransferType.EBCDIC && dataConn.getCodePage() == null)) &&
+                (dataConn.getMode() == TransferMode.STREAM ||
+                dataConn.getMode() == TransferMode.ZLIB);
+    }
+
+    /**
+     * 
+     * @param restart
+     * @return the REST offset if it is a position, else 0
+     */
+    private static long getRestOffset(Restart restart) {
+        if (restart instanceof FilesystemBasedFtpRestart && restart.isSet()) {
+            long offset = ((FilesystemBasedFtpRestart) restart).getStartPosition();
+            return offset > 0 ? offset : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Prepare the offset index of a TYPE A Retrieve: a REST offset in the translated stream
+     * starts from the nearest checkpoint in the file, the translated bytes before the offset
+     * being dropped by the Type codec
+     * 
+     * @param restart
+     * @throws CommandAbstractException
+     */
+    private void prepareRetrieveIndex(Restart restart) throws CommandAbstractException {
+        long interval = ((FtpSession) getSession()).getConfiguration().getOffsetIndexInterval();
+        long offset = getRestOffset(restart);
+        if (offset == 0 && interval <= 0) {
+            return;
+        }
+        FtpOffsetIndex index = FtpOffsetIndex.load(((FtpSession) getSession()).getConfiguration(),
+                getFileFromPath(getFile()),
+                FtpOffsetIndex.keyOf(((FtpSession) getSession()).getDataConn().getType()),
+                interval);
+        int rank = index.floor(offset);
+        if (offset > 0) {
+            ((FilesystemBasedFtpRestart) restart).setStartPosition(index.getLocalOffset(rank));
+            logger.debug("REST " + offset + " from checkpoint " + index.getNetworkOffset(rank) +
+                    "/" + index.getLocalOffset(rank));
+        }
+        index.start(rank, offset - index.getNetworkOffset(rank), false);
+        offsetIndex = index;
+    }
+
+    /**
+     * Prepare the offset index of a TYPE A Store: a REST offset in the translated stream is
+     * mapped to the file by its checkpoint, or else by translating the file from the previous
+     * checkpoint (the start of the file without index)
+     * 
+     * @param restart
+     * @throws CommandAbstractException
+     */
+    private void prepareStoreIndex(Restart restart) throws CommandAbstractException {
+        long interval = ((FtpSession) getSession()).getConfiguration().getOffsetIndexInterval();
+        long offset = getRestOffset(restart);
+        if (offset == 0 && interval <= 0) {
+            return;
+        }
+        File file = getFileFromPath(getFile());
+        if (appendStore) {
+            // offsets of the appended data are not known
+            FtpOffsetIndex.delete(((FtpSession) getSession()).getConfiguration(), file);
+            return;
+        }
+        TransferType type = ((FtpSession) getSession()).getDataConn().getType();
+        String key = FtpOffsetIndex.keyOf(type);
+        FtpOffsetIndex index;
+        int rank = 0;
+        if (offset > 0) {
+            index = FtpOffsetIndex.load(((FtpSession) getSession()).getConfiguration(), file,
+                    key, interval);
+            rank = index.floor(offset);
+            if (index.getNetworkOffset(rank) != offset) {
+                // checkpoints are at least one interval apart, only at clean block boundaries
+                long maxScan = 2 * (interval > 0 ? interval : FtpOffsetIndex.DEFAULT_INTERVAL);
+                long local;
+                try {
+                    local = FtpDataCharsetConverter.findLocalOffset(file, type,
+                            index.getLocalOffset(rank), index.getNetworkOffset(rank), offset,
+                            maxScan);
+                } catch (IOException e) {
+                    logger.debug("Cannot translate the file: " + e.getMessage());
+                    local = -1;
+                }
+                if (local < 0) {
+                    restart.setSet(false);
+                    throw new Reply450Exception(
+                            "Restart offset is not a position of the file in TYPE " + type.type);
+                }
+                rank = index.insert(rank, offset, local);
+            }
+            ((FilesystemBasedFtpRestart) restart).setStartPosition(index.getLocalOffset(rank));
+        } else {
+            index = new FtpOffsetIndex(((FtpSession) getSession()).getConfiguration(), file, key,
+                    interval);
+        }
+        index.start(rank, 0, true);
+        offsetIndex = index;
+    }
+
+    public FtpOffsetIndex getOffsetIndex() {
+        return offsetIndex;
+    }
+
+    public String getStoragePath() throws CommandAbstractException {
+        return getFileFromPath(getFile()).getAbsolutePath();
+    }
+
+    @Override
+    public boolean retrieve() throws CommandAbstractException {
+        // Keep the restart position since it is consumed by the retrieve
+        retrievePosition = 0;
+        retrieveEnd = -1;
+        FtpSession ftpSession = (FtpSession) getSession();
+        long rangeStart = ftpSession.getRangeStart();
+        long rangeEnd = ftpSession.getRangeEnd();
+        ftpSession.resetRange();
+        checkRange(rangeStart);
+        if (getRangeCommit().isPending(getFileFromPath(getFile()))) {
+            throw new Reply450Exception("File is not complete: some byte ranges are expected");
+        }
+        Restart restart = ftpSession.getRestart();
+        offsetIndex = null;
+        if (isTranslatedStream()) {
+            prepareRetrieveIndex(restart);
+        }
+        if (restart != null && restart.isSet()) {
+            if (restart instanceof FilesystemBasedFtpRestart) {
+                retrievePosition = ((FilesystemBasedFtpRestart) restart).getStartPosition();
+            } else {
+                retrievePosition = -1;
+            }
+        }
+        if (rangeStart >= 0) {
+            // only sent by the pass through paths (TYPE I, MODE S)
+            retrievePosition = rangeStart;
+            retrieveEnd = rangeEnd + 1;
+        }
+        boolean result = super.retrieve();
+        inlineDigest = null;
+        if (result && retrievePosition == 0 && retrieveEnd < 0) {
+            inlineDigest = FilesystemBasedInlineDigest.newInlineDigest(
+                    ((FtpSession) getSession()).getConfiguration());
+        }
+        return result;
+    }
+
+    @Override
+    public boolean store() throws CommandAbstractException {
+        // Keep the restart position since it is consumed by the store
+        storePosition = 0;
+        storeRangeEnd = -1;
+        FtpSession ftpSession = (FtpSession) getSession();
+        long rangeStart = ftpSession.getRangeStart();
+        long rangeEnd = ftpSession.getRangeEnd();
+        ftpSession.resetRange();
+        checkRange(rangeStart);
+        Restart restart = ftpSession.getRestart();
+        offsetIndex = null;
+        if (isTranslatedStream()) {
+            prepareStoreIndex(restart);
+        }
+        if (restart != null && restart.isSet()) {
+            if (restart instanceof FilesystemBasedFtpRestart) {
+                storePosition = ((FilesystemBasedFtpRestart) restart).getStartPosition();
+            } else {
+                storePosition = -1;
+            }
+        }
+        long allocation = ftpSession.getAllocation();
+        ftpSession.setAllocation(0);
+        storeWritten = 0;
+        if (allocation > 0) {
+            long free = ftpSession.getDir().getFreeSpace();
+            if (free >= 0 && free < allocation) {
+                throw new Reply452Exception("Not enough space left");
+            }
+        }
+        File file = getFileFromPath(getFile());
+        if (rangeStart >= 0) {
+            if (allocation <= 0 && !getRangeCommit().hasTotal(file)) {
+                throw new Reply503Exception(
+                        "ALLO with the total size of the file needed before the first ranged STOR");
+            }
+            // written at its own offset, the file being shared with the other ranges
+            storePosition = rangeStart;
+            if (!file.exists()) {
+                try {
+                    file.createNewFile();
+                } catch (IOException e) {
+                    logger.debug("Cannot create ranged file: " + e.getMessage());
+                }
+            }
+        } else if (!getRangeCommit().discard(file)) {
+            throw new Reply450Exception("File is being uploaded by byte ranges");
+        }
+        storeStart = storePosition > 0 ? storePosition : 0;
+        if (appendStore) {
+            storeStart = file.length();
+        }
+        boolean result = super.store();
+        storeInProgress = result;
+        if (result && rangeStart >= 0) {
+            try {
+                // ALLO gives the total size of the file, else known from the journal
+                getRangeCommit().begin(file, allocation);
+            } catch (IOException e) {
+                storeInProgress = false;
+                super.closeFile();
+                throw new Reply452Exception("Ranged file cannot be allocated");
+            }
+            storeRangeEnd = rangeEnd + 1;
+        }
+        inlineDigest = null;
+        if (result && storePosition == 0 && !appendStore && storeRangeEnd < 0) {
+            inlineDigest = FilesystemBasedInlineDigest.newInlineDigest(
+                    ftpSession.getConfiguration());
+        }
+        return result;
+    }
+
+    /**
+     * Check that a byte range is still possible with the current TYPE, MODE and STRU, which may
+     * have changed since RANG
+     * 
+     * @param rangeStart
+     *            the start of the byte range, -1 if none
+     * @throws Reply504Exception
+     */
+    private void checkRange(long rangeStart) throws Reply504Exception {
+        if (rangeStart >= 0 && !((FtpSession) getSession()).getDataConn().isStreamFileImage()) {
+            throw new Reply504Exception("Byte range only in TYPE I, MODE S and STRU F");
+        }
+    }
+
+    /**
+     * 
+     * @return the commit of the ranges of the files uploaded in parallel
+     */
+    private FtpRangeCommit getRangeCommit() {
+        return ((FtpSession) getSession()).getConfiguration().getFtpInternalConfiguration()
+                .getRangeCommit();
+    }
+
+    /**
+     * End the ranged store if any
+     * 
+     * @param commit
+     *            True to commit the bytes written, False if they are not reliable
+     */
+    private void endRange(boolean commit) {
+        if (storeRangeEnd < 0) {
+            return;
+        }
+        storeRangeEnd = -1;
+        try {
+            File file = getFileFromPath(getFile());
+            if (getRangeCommit().commit(file, storeStart,
+                    commit ? storeStart + storeWritten : storeStart)) {
+                logger.debug("File complete from byte ranges: " + file);
+            }
+        } catch (CommandAbstractException e) {
+            logger.warn("Cannot commit byte range: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the block, coalescing successive blocks up to a size or a delay such that they are
+     * written to disk using one gathering write
+     */
+    @Override
+    public void writeDataBlock(DataBlock dataBlock) throws FileTransferException {
+        if (dataBlock.getBlock() != null) {
+            storeWritten += dataBlock.getBlock().readableBytes();
+        }
+        if (storeRangeEnd >= 0 && storeStart + storeWritten > storeRangeEnd) {
+            throw new FileTransferException("Data beyond the byte range");
+        }
+        if (inlineDigest != null && dataBlock.getBlock() != null) {
+            inlineDigest.update(dataBlock.getBlock());
+        }
+        FtpConfiguration configuration = ((FtpSession) session).getConfiguration();
+        if ((configuration.getStoreCoalesceSize() <= 0 || storePosition < 0) &&
+                storeRangeEnd < 0) {
+            super.writeDataBlock(dataBlock);
+            return;
+        }
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        synchronized (storeLock) {
+            ByteBuf buffer = dataBlock.getBlock();
+            if (buffer != null && buffer.isReadable()) {
+                if (storePending == null) {
+                    storePending = Unpooled.compositeBuffer(STORE_MAX_COMPONENTS);
+                    storePendingTime = System.currentTimeMillis();
+                    scheduleStoreFlush(configuration);
+                }
+                storePending.addComponent(buffer.retain());
+                storePending.writerIndex(storePending.writerIndex() + buffer.readableBytes());
+            }
+            if (storePending != null &&
+                    (dataBlock.isEOF() ||
+                            storePending.readableBytes() >= configuration.getStoreCoalesceSize() ||
+                            storePending.numComponents() >= STORE_MAX_COMPONENTS ||
+                            System.currentTimeMillis() - storePendingTime >= configuration
+                                    .getStoreCoalesceDelay())) {
+                flushStorePending();
+            }
+        }
+        if (dataBlock.isEOF()) {
+            try {
+                closeFile();
+            } catch (CommandAbstractException e) {
+                throw new FileTransferException("Close in error");
+            }
+        }
+    }
+
+    /**
+     * Coalesced blocks are written before giving the position, without forcing them to disk
+     */
+    public long checkpointStore() throws FileTransferException {
+        synchronized (storeLock) {
+            flushStorePending();
+        }
+        return storeStart + storeWritten;
+    }
+
+    @Override
+    public boolean closeFile() throws CommandAbstractException {
+        synchronized (storeLock) {
+            try {
+                flushStorePending();
+            } catch (FileTransferException e) {
+                logger.warn("Cannot write last blocks", e);
+                releaseStore();
+                if (storeRangeEnd >= 0) {
+                    // the file is shared with the other ranges
+                    super.closeFile();
+                    storeInProgress = false;
+                    endRange(false);
+                } else {
+                    super.abortFile();
+                }
+                throw new Reply450Exception("Store cannot be finished");
+            }
+            releaseStore();
+        }
+        boolean result = super.closeFile();
+        if (storeInProgress) {
+            storeInProgress = false;
+            try {
+                syncStore();
+            } catch (CommandAbstractException e) {
+                endRange(false);
+                throw e;
+            }
+            saveOffsetIndex();
+            endRange(true);
+        }
+        publishDigest();
+        return result;
+    }
+
+    @Override
+    public boolean abortFile() throws CommandAbstractException {
+        synchronized (storeLock) {
+            releaseStore();
+        }
+        inlineDigest = null;
+        boolean stored = storeInProgress;
+        storeInProgress = false;
+        // a ranged file is shared with the other ranges so never deleted
+        boolean result = storeRangeEnd >= 0 ? super.closeFile() : super.abortFile();
+        if (stored) {
+            // checkpoints of the data already written allow a REST
+            saveOffsetIndex();
+            endRange(false);
+        }
+        return result;
+    }
+
+    /**
+     * Save the offset index of the current transfer if any
+     */
+    private void saveOffsetIndex() {
+        FtpOffsetIndex index = offsetIndex;
+        if (index != null) {
+            index.save();
+        }
+    }
+
+    @Override
+    public boolean delete() throws CommandAbstractException {
+        File file = getFileFromPath(getFile());
+        boolean result = super.delete();
+        if (result) {
+            FtpOffsetIndex.delete(((FtpSession) getSession()).getConfiguration(), file);
+            getRangeCommit().discard(file);
+        }
+        return result;
+    }
+
+    /**
+     * Make the stored file durable according to the configuration before the final reply
+     * 
+     * @throws CommandAbstractException
+     */
+    private void syncStore() throws CommandAbstractException {
+        FtpConfiguration configuration = ((FtpSession) session).getConfiguration();
+        StoreDurability durability = configuration.getStoreDurability();
+        if (durability == StoreDurability.NONE) {
+            return;
+        }
+        File file = getFileFromPath(getFile());
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.getFD().sync();
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot synchronize stored file: " + e.getMessage());
+            throw new Reply450Exception("Stored file cannot be synchronized");
+        }
+    }
+
+    /**
+     * Attach the digests computed during the transfer to the directory, if they cover the whole
+     * file
+     */
+    private void publishDigest() {
+        FilesystemBasedInlineDigest digest = inlineDigest;
+        inlineDigest = null;
+        if (digest == null) {
+            return;
+        }
+        try {
+            FtpDigestEntry entry = digest.getEntry(getFileFromPath(getFile()));
+            if (entry != null) {
+                ftpDir.setDigest(entry);
+            }
+        } catch (CommandAbstractException e) {
+            logger.debug("Cannot attach digest", e);
+        }
+    }
+
+    /**
+     * Schedule the write of the pending blocks after the coalescing delay, on the pool of the
+     * storage device of the file (storeLock must be held)
+     * 
+     * @param configuration
+     */
+    private void scheduleStoreFlush(FtpConfiguration configuration) {
+        long delay = configuration.getStoreCoalesceDelay();
+        if (delay <= 0) {
+            // each block is written at once
+            return;
+        }
+        final FtpInternalConfiguration internal = configuration.getFtpInternalConfiguration();
+        final Runnable flush = new Runnable() {
+            public void run() {
+                try {
+                    synchronized (storeLock) {
+                        flushStorePending();
+                    }
+                } catch (FileTransferException e) {
+                    logger.debug(e);
+                    ((FtpSession) session).getDataConn().getFtpTransferControl()
+                            .setTransferAbortedFromInternal(true);
+                }
+            }
+        };
+        try {
+            storeFlushTimer = internal.getScheduledExecutor().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        ExecutorService pool = internal.getStoreExecutor().getExecutor(
+                                getStoragePath());
+                        pool.execute(flush);
+                    } catch (CommandAbstractException e) {
+                        logger.debug(e);
+                    } catch (RejectedExecutionException e) {
+                        logger.debug("Rejected execution (shutdown) of delayed flush");
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Rejected execution (shutdown) of delayed flush");
+        }
+    }
+
+    /**
+     * Cancel the scheduled write of the pending blocks if any (storeLock must be held)
+     */
+    private void cancelStoreFlush() {
+        if (storeFlushTimer != null) {
+            storeFlushTimer.cancel(false);
+            storeFlushTimer = null;
+        }
+    }
+
+    /**
+     * Write all pending blocks using one gathering write (storeLock must be held)
+     * 
+     * @throws FileTransferException
+     */
+    private void flushStorePending() throws FileTransferException {
+        cancelStoreFlush();
+        if (storePending == null) {
+            return;
+        }
+        CompositeByteBuf pending = storePending;
+        storePending = null;
+        try {
+            if (storeChannel == null) {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(
+                        getFileFromPath(getFile()), "rw");
+                storeChannel = randomAccessFile.getChannel();
+                if (storeRangeEnd >= 0) {
+                    // shared with the other ranges: never truncated
+                    storeChannel.position(storePosition);
+                } else if (appendStore) {
+                    storeChannel.position(storeChannel.size());
+                } else {
+                    storeChannel.truncate(storePosition);
+                    storeChannel.position(storePosition);
+                }
+            }
+            ByteBuffer[] buffers = pending.nioBuffers();
+            long remaining = pending.readableBytes();
+            while (remaining > 0) {
+                remaining -= storeChannel.write(buffers);
+            }
+        } catch (IOException e) {
+            throw new FileTransferException("File cannot be written");
+        } catch (CommandAbstractException e) {
+            throw new FileTransferException("File cannot be written");
+        } finally {
+            pending.release();
+        }
+    }
+
+    /**
+     * Release the pending blocks and the FileChannel of coalesced writes (storeLock must be held)
+     */
+    private void releaseStore() {
+        cancelStoreFlush();
+        if (storePending != null) {
+            storePending.release();
+            storePending = null;
+        }
+        if (storeChannel != null) {
+            try {
+                storeChannel.close();
+            } catch (IOException e) {
+            }
+            storeChannel = null;
+        }
+    }
+
     /**
      * Launch retrieve operation (internal method, should not be called directly)
      * 
@@ -111,6 +835,20 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
                         .setPreEndOfTransfer();
                 return;
             }
+            if (isPassThroughAllowed()) {
+                FtpConfiguration configuration = ((FtpSession) session).getConfiguration();
+                if (channel.pipeline().get(SslHandler.class) == null) {
+                    if (configuration.isZeroCopyRetrieve() || retrieveEnd >= 0) {
+                        // no data in user space so no inline digest
+                        inlineDigest = null;
+                        trueRetrieveFileRegion(channel);
+                        return;
+                    }
+                } else if (configuration.getRetrieveMappedSize() > 0 || retrieveEnd >= 0) {
+                    trueRetrieveMapped(channel);
+                    return;
+                }
+            }
             DataBlock block = null;
             try {
                 block = readDataBlock();
@@ -132,50 +870,53 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
                         .setPreEndOfTransfer();
                 return;
             }
-            // While not last block
-            ChannelFuture future = null;
-            while (block != null && !block.isEOF()) {
-                future = channel.writeAndFlush(block);
-                try {
-                    future.await();
-                } catch (InterruptedException e) {
-                }
-                if (!future.isSuccess()) {
-                    closeFile();
-                    throw new FileTransferException("File transfer in error");
-                }
-                try {
-                    block = readDataBlock();
-                } catch (FileEndOfTransferException e) {
-                    closeFile();
-                    // Wait for last write
-                    if (future.isSuccess()) {
-                        ((FtpSession) session).getDataConn()
-                                .getFtpTransferControl().setPreEndOfTransfer();
-                    } else {
-                        throw new FileTransferException("File transfer in error");
+            // While not last block, keeping a bounded window of blocks in flight
+            FtpConfiguration configuration = ((FtpSession) session).getConfiguration();
+            FtpRetrieveWindow window = new FtpRetrieveWindow(channel,
+                    configuration.getRetrieveWindowBlocks(),
+                    configuration.getRetrieveWindowSize());
+            setRetrieveWindow(window);
+            // Restart markers in MODE B when the start position is known
+            boolean markers = retrievePosition >= 0 && configuration.isRestartMarkerEnabled() &&
+                    ((FtpSession) session).getDataConn().getMode() == TransferMode.BLOCK;
+            long position = retrievePosition;
+            long markerPosition = position;
+            long markerTime = System.currentTimeMillis();
+            try {
+                while (block != null && !block.isEOF()) {
+                    position += block.getByteCount();
+                    writeBlock(window, block);
+                    if (markers) {
+                        long now = System.currentTimeMillis();
+                        long size = configuration.getRestartMarkerSize();
+                        long delay = configuration.getRestartMarkerDelay();
+                        if ((size > 0 && position - markerPosition >= size) ||
+                                (delay > 0 && now - markerTime >= delay)) {
+                            writeMarker(window, position);
+                            markerPosition = position;
+                            markerTime = now;
+                        }
+                    }
+                    try {
+                        block = readDataBlock();
+                    } catch (FileEndOfTransferException e) {
+                        // previous block was the last one
+                        block = null;
                     }
-                    return;
-                }
-            }
-            // Last block
-            closeFile();
-            if (block != null) {
-                logger.debug("Write " + block.getByteCount());
-                future = channel.writeAndFlush(block);
-            }
-            // Wait for last write
-            if (future != null) {
-                try {
-                    future.await();
-                } catch (InterruptedException e) {
                 }
-                if (future.isSuccess()) {
-                    ((FtpSession) session).getDataConn().getFtpTransferControl()
-                            .setPreEndOfTransfer();
-                } else {
-                    throw new FileTransferException("Write is not successful");
+                // Last block, digested before the close publishes the digests
+                if (block != null) {
+                    logger.debug("Write " + block.getByteCount());
+                    writeBlock(window, block);
                 }
+                closeFile();
+                // Wait for all pending writes
+                window.drain();
+                ((FtpSession) session).getDataConn().getFtpTransferControl()
+                        .setPreEndOfTransfer();
+            } finally {
+                setRetrieveWindow(null);
+                saveOffsetIndex();
             }
         } catch (FileTransferException e) {
             // An error occurs!
@@ -189,4 +930,240 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
             retrieveLock.unlock();
         }
     }
+
+    /**
+     * 
+     * @return True if the data can be sent as is (STREAM, FILE, IMAGE and no limit)
+     */
+    private boolean isPassThroughAllowed() {
+        return retrievePosition >= 0 &&
+                ((FtpSession) session).getDataConn().isStreamFileImage();
+    }
+
+    /**
+     * 
+     * @param configuration
+     * @return the size of one slice sent as one message, being one window slot (at least
+     *         BLOCKSIZE)
+     */
+    private static long getSliceSize(FtpConfiguration configuration) {
+        long sliceSize = configuration.getRetrieveWindowSize() /
+                configuration.getRetrieveWindowBlocks();
+        if (sliceSize < configuration.getBLOCKSIZE()) {
+            sliceSize = configuration.getBLOCKSIZE();
+        }
+        return sliceSize;
+    }
+
+    /**
+     * Retrieve operation using FileRegion (sendfile) from the restart position, cut in regions
+     * of the size of one window slot so that the traffic shaping still applies
+     * 
+     * @param channel
+     * @throws FileTransferException
+     * @throws CommandAbstractException
+     */
+    private void trueRetrieveFileRegion(Channel channel)
+            throws FileTransferException, CommandAbstractException {
+        FtpConfiguration configuration = ((FtpSession) session).getConfiguration();
+        File file = getFileFromPath(getFile());
+        RandomAccessFile randomAccessFile = null;
+        FtpRetrieveWindow window = new FtpRetrieveWindow(channel,
+                configuration.getRetrieveWindowBlocks(),
+                configuration.getRetrieveWindowSize());
+        long regionSize = getSliceSize(configuration);
+        setRetrieveWindow(window);
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long position = retrievePosition;
+            long end = fileChannel.size();
+            if (retrieveEnd >= 0 && retrieveEnd < end) {
+                end = retrieveEnd;
+            }
+            logger.debug("Zero-copy retrieve from " + position + " to " + end);
+            while (position < end) {
+                int count = (int) Math.min(regionSize, end - position);
+                window.write(new SharedFileRegion(fileChannel, position, count), count);
+                position += count;
+            }
+            // Wait for all pending writes
+            window.drain();
+            closeFile();
+            ((FtpSession) session).getDataConn().getFtpTransferControl()
+                    .setPreEndOfTransfer();
+        } catch (IOException e) {
+            closeFile();
+            throw new FileTransferException("File cannot be read");
+        } catch (FileTransferException e) {
+            closeFile();
+            throw e;
+        } finally {
+            setRetrieveWindow(null);
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve operation for SSL data connection: the file is mapped by large windows and slices
+     * of those windows are given directly to the SslHandler without any intermediate copy. Each
+     * mapped window is released as soon as its last slice is written (or failed).
+     * 
+     * @param channel
+     * @throws FileTransferException
+     * @throws CommandAbstractException
+     */
+    private void trueRetrieveMapped(Channel channel)
+            throws FileTransferException, CommandAbstractException {
+        FtpConfiguration configuration = ((FtpSession) session).getConfiguration();
+        File file = getFileFromPath(getFile());
+        RandomAccessFile randomAccessFile = null;
+        FtpRetrieveWindow window = new FtpRetrieveWindow(channel,
+                configuration.getRetrieveWindowBlocks(),
+                configuration.getRetrieveWindowSize());
+        long sliceSize = getSliceSize(configuration);
+        long mappedSize = configuration.getRetrieveMappedSize();
+        if (mappedSize < sliceSize) {
+            mappedSize = sliceSize;
+        }
+        setRetrieveWindow(window);
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long position = retrievePosition;
+            long end = fileChannel.size();
+            if (retrieveEnd >= 0 && retrieveEnd < end) {
+                end = retrieveEnd;
+            }
+            logger.debug("Mapped retrieve from " + position + " to " + end);
+            while (position < end) {
+                long size = Math.min(mappedSize, end - position);
+                MappedByteBuffer mapped = fileChannel.map(MapMode.READ_ONLY, position, size);
+                ByteBuf mappedBuf = Unpooled.wrappedBuffer(mapped);
+                ChannelFuture last = null;
+                try {
+                    int offset = 0;
+                    while (offset < size) {
+                        int count = (int) Math.min(sliceSize, size - offset);
+                        ByteBuf slice = mappedBuf.slice(offset, count).retain();
+                        if (inlineDigest != null) {
+                            inlineDigest.update(slice);
+                        }
+                        try {
+                            last = window.write(slice, count);
+                        } catch (FileTransferException e) {
+                            slice.release();
+                            throw e;
+                        }
+                        offset += count;
+                    }
+                } finally {
+                    mappedBuf.release();
+                    unmapWhenWritten(mapped, last);
+                }
+                position += size;
+            }
+            // Wait for all pending writes
+            window.drain();
+            closeFile();
+            ((FtpSession) session).getDataConn().getFtpTransferControl()
+                    .setPreEndOfTransfer();
+        } catch (IOException e) {
+            closeFile();
+            throw new FileTransferException("File cannot be read");
+        } catch (FileTransferException e) {
+            closeFile();
+            throw e;
+        } finally {
+            setRetrieveWindow(null);
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the mapped window once its last write is done, whatever the status (writes are
+     * done in order, so all previous slices are done too)
+     * 
+     * @param mapped
+     * @param last
+     *            the last write future using this mapped window, null if none
+     */
+    private static void unmapWhenWritten(final MappedByteBuffer mapped, ChannelFuture last) {
+        if (last == null) {
+            PlatformDependent.freeDirectBuffer(mapped);
+            return;
+        }
+        last.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                PlatformDependent.freeDirectBuffer(mapped);
+            }
+        });
+    }
+
+    /**
+     * Write one block through the window, closing the file if the transfer is in error
+     * 
+     * @param window
+     * @param block
+     * @throws FileTransferException
+     * @throws CommandAbstractException
+     */
+    private void writeBlock(FtpRetrieveWindow window, DataBlock block)
+            throws FileTransferException, CommandAbstractException {
+        if (inlineDigest != null && block.getBlock() != null) {
+            inlineDigest.update(block.getBlock());
+        }
+        try {
+            window.write(block, block.getByteCount());
+        } catch (FileTransferException e) {
+            if (block.getBlock() != null) {
+                block.getBlock().release();
+            }
+            closeFile();
+            throw e;
+        }
+    }
+
+    /**
+     * Write one restart marker through the window, closing the file if the transfer is in error
+     * 
+     * @param window
+     * @param position
+     *            the position in the file of the next data
+     * @throws FileTransferException
+     * @throws CommandAbstractException
+     */
+    private void writeMarker(FtpRetrieveWindow window, long position)
+            throws FileTransferException, CommandAbstractException {
+        try {
+            window.write(new FtpRestartMarker(position), 0);
+        } catch (FileTransferException e) {
+            closeFile();
+            throw e;
+        }
+    }
+
+    /**
+     * Register the window in the DataNetworkHandler so that it is resumed on writability change
+     * 
+     * @param window
+     */
+    private void setRetrieveWindow(FtpRetrieveWindow window) {
+        try {
+            ((FtpSession) session).getDataConn().getDataNetworkHandler()
+                    .setRetrieveWindow(window);
+        } catch (FtpNoConnectionException e) {
+            // ignore since no more connection
+        }
+    }
 }
@@ -28,7 +28,9 @@ import org.waarp.ftp.core.session.FtpSession;
 
 /**
  * Filesystem implementation of a Restart.<br>
- * Only FILE+STREAM is supported (byte position in file).
+ * Only FILE structure with STREAM, ZLIB or BLOCK mode is supported (byte position in file, as
+ * given by the restart markers of MODE B). In TYPE A with STREAM or ZLIB mode, the position is
+ * the offset in the translated stream, mapped to the file through the offset index.
  * 
  * @author Frederic Bregier
  * 
@@ -45,7 +47,9 @@ public class FilesystemBasedFtpRestart extends FilesystemBasedRestartImpl {
     public boolean restartMarker(String marker) throws CommandAbstractException {
         FtpDataAsyncConn dataConn = ((FtpSession) getSession()).getDataConn();
         if (dataConn.getStructure() == TransferStructure.FILE &&
-                dataConn.getMode() == TransferMode.STREAM &&
+                (dataConn.getMode() == TransferMode.STREAM ||
+                dataConn.getMode() == TransferMode.ZLIB ||
+                dataConn.getMode() == TransferMode.BLOCK) &&
                 dataConn.getType() != TransferType.LENGTH) {
             long newposition = 0;
             String[] args = marker.split(" ");
@@ -65,4 +69,26 @@ public class FilesystemBasedFtpRestart extends FilesystemBasedRestartImpl {
         throw new Reply502Exception(
                 "Marker not implemented for such Mode, Type and Structure");
     }
+
+    /**
+     * 
+     * @return the position set by the last marker, or -1 if a limit was also set (partial
+     *         transfer)
+     */
+    public long getStartPosition() {
+        if (limit > 0) {
+            return -1;
+        }
+        return position;
+    }
+
+    /**
+     * Move the start position (TYPE A: from the offset in the translated stream to the offset of
+     * the nearest checkpoint in the file)
+     * 
+     * @param position
+     */
+    public void setStartPosition(long position) {
+        this.position = position;
+    }
 }
@@ -0,0 +1,168 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.filesystembased;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.file.FtpDigestEntry;
+
+/**
+ * Digests computed while the data of a whole file goes through a transfer, such that XCRC, XMD5
+ * and XSHA1 do not need to read the file again
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedInlineDigest {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedInlineDigest.class);
+
+    /**
+     * Size of the intermediate array for non array based buffers
+     */
+    private static final int CHUNK_SIZE = 0x10000;
+
+    private final CRC32 crc;
+    private final MessageDigest md5;
+    private final MessageDigest sha1;
+    private byte[] chunk = null;
+
+    /**
+     * Number of bytes digested
+     */
+    private long count = 0;
+
+    private FilesystemBasedInlineDigest(boolean useCrc, boolean useMd5, boolean useSha1)
+            throws NoSuchAlgorithmException {
+        crc = useCrc ? new CRC32() : null;
+        md5 = useMd5 ? MessageDigest.getInstance("MD5") : null;
+        sha1 = useSha1 ? MessageDigest.getInstance("SHA-1") : null;
+    }
+
+    /**
+     * 
+     * @param configuration
+     * @return a new InlineDigest according to the configuration, or null if none is configured
+     */
+    public static FilesystemBasedInlineDigest newInlineDigest(FtpConfiguration configuration) {
+        if (!configuration.isInlineDigestCRC() && !configuration.isInlineDigestMD5() &&
+                !configuration.isInlineDigestSHA1()) {
+            return null;
+        }
+        try {
+            return new FilesystemBasedInlineDigest(configuration.isInlineDigestCRC(),
+                    configuration.isInlineDigestMD5(), configuration.isInlineDigestSHA1());
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Inline digest not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Update the digests with the readable bytes of the buffer, without changing its indexes
+     * 
+     * @param buffer
+     */
+    public void update(ByteBuf buffer) {
+        int length = buffer.readableBytes();
+        if (length == 0) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), length);
+        } else {
+            int index = buffer.readerIndex();
+            byte[] array = getChunk();
+            while (length > 0) {
+                int size = Math.min(length, array.length);
+                buffer.getBytes(index, array, 0, size);
+                update(array, 0, size);
+                index += size;
+                length -= size;
+            }
+        }
+    }
+
+    /**
+     * Update the digests with the remaining bytes of the buffer, without changing its position
+     * 
+     * @param buffer
+     */
+    public void update(ByteBuffer buffer) {
+        ByteBuffer duplicate = buffer.duplicate();
+        if (duplicate.hasArray()) {
+            update(duplicate.array(), duplicate.arrayOffset() + duplicate.position(),
+                    duplicate.remaining());
+            return;
+        }
+        byte[] array = getChunk();
+        while (duplicate.hasRemaining()) {
+            int size = Math.min(duplicate.remaining(), array.length);
+            duplicate.get(array, 0, size);
+            update(array, 0, size);
+        }
+    }
+
+    private void update(byte[] array, int offset, int length) {
+        if (crc != null) {
+            crc.update(array, offset, length);
+        }
+        if (md5 != null) {
+            md5.update(array, offset, length);
+        }
+        if (sha1 != null) {
+            sha1.update(array, offset, length);
+        }
+        count += length;
+    }
+
+    private byte[] getChunk() {
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+        return chunk;
+    }
+
+    /**
+     * 
+     * @param file
+     *            the file once the transfer is over
+     * @return the resulting entry, or null if the digested data does not cover the whole file
+     */
+    public FtpDigestEntry getEntry(File file) {
+        if (!file.isFile() || file.length() != count) {
+            logger.debug("Inline digest incomplete: " + count + " bytes for " + file.length());
+            return null;
+        }
+        return new FtpDigestEntry(file.getAbsolutePath(), count,
+                file.lastModified(), crc != null ? crc.getValue() : -1,
+                md5 != null ? md5.digest() : null, sha1 != null ? sha1.digest() : null);
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.filesystembased;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 of a file computed by several threads: the file is split into ranges whose CRC are
+ * computed independently, then combined (as crc32_combine from zlib).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedParallelCrc {
+    /**
+     * Size of the buffer used by each range
+     */
+    private static final int BUFFER_SIZE = 0x10000;
+
+    /**
+     * Dimension of the GF(2) matrices
+     */
+    private static final int GF2_DIM = 32;
+
+    /**
+     * CRC32 polynomial (reversed)
+     */
+    private static final long CRC32_POLY = 0xedb88320L;
+
+    private FilesystemBasedParallelCrc() {
+    }
+
+    /**
+     * CRC and length of one range
+     */
+    private static class RangeCrc implements Callable<Long> {
+        private final FileChannel fileChannel;
+        private final long start;
+        private final long length;
+
+        private RangeCrc(FileChannel fileChannel, long start, long length) {
+            this.fileChannel = fileChannel;
+            this.start = start;
+            this.length = length;
+        }
+
+        public Long call() throws IOException {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                // positional read, safe to be shared between threads
+                int read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File truncated while computing CRC");
+                }
+                crc.update(buffer.array(), 0, read);
+                position += read;
+            }
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * Compute the CRC32 of the file using several ranges
+     * 
+     * @param file
+     * @param executor
+     * @param ranges
+     *            number of ranges (at least 1)
+     * @return the CRC32 of the file
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static long getCRC(File file, ExecutorService executor, int ranges)
+            throws IOException, InterruptedException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        List<Future<Long>> futures = new ArrayList<Future<Long>>(ranges);
+        try {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long size = fileChannel.size();
+            if (ranges < 1) {
+                ranges = 1;
+            }
+            long rangeSize = (size + ranges - 1) / ranges;
+            List<Long> lengths = new ArrayList<Long>(ranges);
+            for (long start = 0; start < size; start += rangeSize) {
+                long length = Math.min(rangeSize, size - start);
+                lengths.add(length);
+                futures.add(executor.submit(new RangeCrc(fileChannel, start, length)));
+            }
+            long crc = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                long rangeCrc;
+                try {
+                    rangeCrc = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("CRC computation in error: " + e.getCause());
+                }
+                crc = i == 0 ? rangeCrc : crc32Combine(crc, rangeCrc, lengths.get(i));
+            }
+            return crc;
+        } finally {
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 
+     * @param crc1
+     *            CRC32 of the first part
+     * @param crc2
+     *            CRC32 of the second part
+     * @param length2
+     *            length of the second part
+     * @return the CRC32 of the concatenation of both parts
+     */
+    public static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[GF2_DIM];
+        long[] odd = new long[GF2_DIM];
+        // operator for one zero bit
+        odd[0] = CRC32_POLY;
+        long row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operator for two then four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        // apply length2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc1 ^ crc2) & 0xffffffffL;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < GF2_DIM; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
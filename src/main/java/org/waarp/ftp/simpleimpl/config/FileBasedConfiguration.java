@@ -36,6 +36,8 @@ import org.waarp.common.file.filesystembased.specific.FilesystemBasedDirJdkAbstr
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpConfiguration.ExecutionMode;
+import org.waarp.ftp.core.config.FtpConfiguration.StoreDurability;
 import org.waarp.ftp.core.control.BusinessHandler;
 import org.waarp.ftp.core.data.handler.DataBusinessHandler;
 import org.waarp.ftp.simpleimpl.file.SimpleAuth;
@@ -117,6 +119,116 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     private static final String XML_BLOCKSIZE = "/config/blocksize";
 
+    /**
+     * Maximum number of blocks in flight while retrieving a file
+     */
+    private static final String XML_RETRIEVE_WINDOW = "/config/retrievewindow";
+
+    /**
+     * Maximum number of bytes in flight while retrieving a file
+     */
+    private static final String XML_RETRIEVE_WINDOW_SIZE = "/config/retrievewindowsize";
+
+    /**
+     * Should zero-copy be used while retrieving a file when possible
+     */
+    private static final String XML_ZEROCOPY_RETRIEVE = "/config/zerocopyretrieve";
+
+    /**
+     * Size of mapped windows while retrieving a file through SSL when possible
+     */
+    private static final String XML_RETRIEVE_MAPPED_SIZE = "/config/retrievemappedsize";
+
+    /**
+     * Maximum number of bytes per session waiting to be written on disk while storing a file
+     */
+    private static final String XML_STORE_WRITE_BUDGET = "/config/storewritebudget";
+
+    /**
+     * Path prefixes of distinct storage devices, each one having its own write pool
+     */
+    private static final String XML_STORE_DEVICE = "/config/storedevices/device";
+
+    /**
+     * Number of write threads per storage device
+     */
+    private static final String XML_STORE_THREADS = "/config/storethreads";
+
+    /**
+     * Size up to which received blocks are coalesced before being written on disk
+     */
+    private static final String XML_STORE_COALESCE_SIZE = "/config/storecoalescesize";
+
+    /**
+     * Delay in ms after which coalesced blocks are written on disk
+     */
+    private static final String XML_STORE_COALESCE_DELAY = "/config/storecoalescedelay";
+
+    /**
+     * Digests (among CRC, MD5 and SHA1) computed while transferring a whole file
+     */
+    private static final String XML_INLINE_DIGEST = "/config/inlinedigest";
+
+    /**
+     * Maximum number of entries in the digest cache (0 for no cache)
+     */
+    private static final String XML_DIGEST_CACHE_SIZE = "/config/digestcachesize";
+
+    /**
+     * File where the digest cache is kept between restarts
+     */
+    private static final String XML_DIGEST_CACHE_FILE = "/config/digestcachefile";
+
+    /**
+     * Size from which the CRC of a file is computed by several threads
+     */
+    private static final String XML_PARALLEL_CRC_THRESHOLD = "/config/parallelcrcthreshold";
+
+    /**
+     * Number of threads used to compute digests in parallel
+     */
+    private static final String XML_DIGEST_THREADS = "/config/digestthreads";
+
+    /**
+     * Durability of stored files (NONE or SYNC_ON_CLOSE)
+     */
+    private static final String XML_STORE_DURABILITY = "/config/storedurability";
+
+    /**
+     * Number of threads compressing MODE Z chunks in parallel
+     */
+    private static final String XML_ZLIB_THREADS = "/config/zlibthreads";
+
+    /**
+     * Number of bytes between two restart markers in MODE B Retrieve
+     */
+    private static final String XML_RESTART_MARKER_SIZE = "/config/restartmarkersize";
+
+    /**
+     * Delay in ms between two restart markers in MODE B Retrieve
+     */
+    private static final String XML_RESTART_MARKER_DELAY = "/config/restartmarkerdelay";
+
+    /**
+     * Number of file bytes between two checkpoints of the offset index of TYPE A transfers
+     */
+    private static final String XML_OFFSET_INDEX_INTERVAL = "/config/offsetindexinterval";
+
+    /**
+     * Directory of the metadata of the served files, outside the Home
+     */
+    private static final String XML_METADATA_DIRECTORY = "/config/metadatadir";
+
+    /**
+     * Maximum number of transfers executing at once
+     */
+    private static final String XML_TRANSFER_THREADS = "/config/transferthreads";
+
+    /**
+     * Threads running the command handling and the transfers of the sessions
+     */
+    private static final String XML_EXECUTION_MODE = "/config/executionmode";
+
     /**
      * RANGE of PORT for Passive Mode
      */
@@ -296,6 +408,127 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (node != null) {
             setBLOCKSIZE(Integer.parseInt(node.getText()));
         }
+        node = document.selectSingleNode(XML_RETRIEVE_WINDOW);
+        if (node != null) {
+            setRetrieveWindowBlocks(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_RETRIEVE_WINDOW_SIZE);
+        if (node != null) {
+            setRetrieveWindowSize(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_ZEROCOPY_RETRIEVE);
+        if (node != null) {
+            setZeroCopyRetrieve(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_RETRIEVE_MAPPED_SIZE);
+        if (node != null) {
+            setRetrieveMappedSize(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_STORE_WRITE_BUDGET);
+        if (node != null) {
+            setStoreWriteBudget(Long.parseLong(node.getText()));
+        }
+        List<Node> devices = document.selectNodes(XML_STORE_DEVICE);
+        for (Node device : devices) {
+            String prefix = device.getText().trim();
+            if (prefix.length() > 0) {
+                getStoreDevices().add(prefix);
+            }
+        }
+        node = document.selectSingleNode(XML_STORE_THREADS);
+        if (node != null) {
+            setStoreThreads(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_STORE_COALESCE_SIZE);
+        if (node != null) {
+            setStoreCoalesceSize(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_STORE_COALESCE_DELAY);
+        if (node != null) {
+            setStoreCoalesceDelay(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_INLINE_DIGEST);
+        if (node != null) {
+            String digests = "," + node.getText().replace(" ", "").toUpperCase() + ",";
+            setInlineDigestCRC(digests.contains(",CRC,"));
+            setInlineDigestMD5(digests.contains(",MD5,"));
+            setInlineDigestSHA1(digests.contains(",SHA1,"));
+        }
+        node = document.selectSingleNode(XML_DIGEST_CACHE_SIZE);
+        if (node != null) {
+            getDigestCache().setMaxEntries(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_DIGEST_CACHE_FILE);
+        if (node != null && node.getText().trim().length() > 0) {
+            getDigestCache().setPersistentFile(node.getText().trim());
+        }
+        node = document.selectSingleNode(XML_PARALLEL_CRC_THRESHOLD);
+        if (node != null) {
+            setParallelCrcThreshold(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_DIGEST_THREADS);
+        if (node != null) {
+            setDigestThreads(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_STORE_DURABILITY);
+        if (node != null) {
+            String durability = node.getText().trim().toUpperCase();
+            if (durability.equals("GROUP_COMMIT")) {
+                logger.warn("Store durability GROUP_COMMIT is no more supported, using SYNC_ON_CLOSE");
+                durability = StoreDurability.SYNC_ON_CLOSE.name();
+            }
+            try {
+                setStoreDurability(StoreDurability.valueOf(durability));
+            } catch (IllegalArgumentException e) {
+                logger.error("Unknown store durability: " + node.getText());
+                return false;
+            }
+        }
+        node = document.selectSingleNode(XML_ZLIB_THREADS);
+        if (node != null) {
+            setZlibThreads(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_RESTART_MARKER_SIZE);
+        if (node != null) {
+            setRestartMarkerSize(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_RESTART_MARKER_DELAY);
+        if (node != null) {
+            setRestartMarkerDelay(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_OFFSET_INDEX_INTERVAL);
+        if (node != null) {
+            setOffsetIndexInterval(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_METADATA_DIRECTORY);
+        if (node != null) {
+            String metadata = node.getText().trim();
+            try {
+                metadata = FilesystemBasedDirImpl.normalizePath(new File(metadata).getCanonicalPath());
+            } catch (IOException e) {
+                logger.error("Unable to set Metadata directory in Config file: " + filename);
+                return false;
+            }
+            if (metadata.equals(getBaseDirectory()) || metadata.startsWith(getBaseDirectory() + "/")) {
+                logger.error("Metadata directory must be outside the Home in Config file: " +
+                        filename);
+                return false;
+            }
+            setMetadataDirectory(metadata);
+        }
+        node = document.selectSingleNode(XML_TRANSFER_THREADS);
+        if (node != null) {
+            setTransferThreads(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_EXECUTION_MODE);
+        if (node != null) {
+            try {
+                setExecutionMode(ExecutionMode.valueOf(node.getText().trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                logger.error("Unknown execution mode: " + node.getText());
+                return false;
+            }
+        }
         node = document.selectSingleNode(XML_RANGE_PORT_MIN);
         int min = 100;
         if (node != null) {
@@ -132,6 +132,12 @@ public class SimpleBusinessHandler extends BusinessHandler {
                     args[0].equalsIgnoreCase(FtpCommandCode.MLSD.name())) {
                 return getMLSxOptsMessage(args);
             }
+            if (args[0].equalsIgnoreCase(FtpCommandCode.TYPE.name())) {
+                return getTypeOptsMessage(args);
+            }
+            if (args[0].equalsIgnoreCase(FtpCommandCode.MODE.name())) {
+                return getModeOptsMessage(args);
+            }
             throw new Reply502Exception("OPTS not implemented for " + args[0]);
         }
         throw new Reply502Exception("OPTS not implemented");
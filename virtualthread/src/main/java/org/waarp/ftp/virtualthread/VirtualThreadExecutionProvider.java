@@ -0,0 +1,64 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.virtualthread;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpExecutionProvider;
+
+/**
+ * Provider of virtual threads for the VIRTUAL execution mode.<br>
+ * <br>
+ * Each session gets its own command executor running on one virtual thread, and each transfer
+ * runs on its own virtual thread, such that the blocking waits of the command handling and of
+ * the transfers do not hold any platform thread, whatever the number of sessions and without
+ * tuning {@link FtpConfiguration#getCLIENT_THREAD()}. It is loaded by name when
+ * {@link FtpConfiguration#getExecutionMode()} is VIRTUAL.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class VirtualThreadExecutionProvider implements FtpExecutionProvider {
+    /**
+     * Factory for the command handling threads
+     */
+    private final ThreadFactory commandFactory =
+            Thread.ofVirtual().name("Command-", 0).factory();
+
+    /**
+     * Factory for the transfer threads
+     */
+    private final ThreadFactory transferFactory =
+            Thread.ofVirtual().name("Transfer-", 0).factory();
+
+    @Override
+    public EventExecutor newCommandExecutor() {
+        return new DefaultEventExecutor(commandFactory);
+    }
+
+    @Override
+    public ExecutorService newTransferExecutor() {
+        return Executors.newThreadPerTaskExecutor(transferFactory);
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Classes implementing the VIRTUAL execution mode (Java 21)
+ * 
+ * 
+ */
+package org.waarp.ftp.virtualthread;
+